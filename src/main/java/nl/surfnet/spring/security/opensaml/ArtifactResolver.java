@@ -0,0 +1,275 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.saml2.binding.artifact.AbstractSAML2Artifact;
+import org.opensaml.saml2.binding.artifact.SAML2ArtifactType0004;
+import org.opensaml.saml2.core.Artifact;
+import org.opensaml.saml2.core.ArtifactResolve;
+import org.opensaml.saml2.core.ArtifactResponse;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.soap.client.BasicSOAPMessageContext;
+import org.opensaml.ws.soap.client.http.HttpClientBuilder;
+import org.opensaml.ws.soap.client.http.HttpSOAPClient;
+import org.opensaml.ws.soap.common.SOAPException;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+
+import nl.surfnet.spring.security.opensaml.crypt.MessageSigner;
+import nl.surfnet.spring.security.opensaml.util.Clock;
+import nl.surfnet.spring.security.opensaml.util.IDService;
+import nl.surfnet.spring.security.opensaml.util.TimeService;
+import nl.surfnet.spring.security.opensaml.xml.IssuerGenerator;
+
+/**
+ * Resolves SAML 2.0 artifacts at the Artifact Resolution Service of the identity provider that issued them.
+ * <p/>
+ * The identity provider is found by the SourceID of the artifact, the SHA-1 hash of its entity ID. ArtifactResolves
+ * are sent over a pool of keep-alive HTTP connections per identity provider, so the backchannel does not pay for a
+ * TCP and TLS handshake on every login. The ArtifactResolve is signed when a {@link MessageSigner} is set; the
+ * ArtifactResponse is trusted by virtue of the TLS connection, the message in it still has to satisfy the security
+ * policy of the service provider.
+ */
+public class ArtifactResolver implements InitializingBean, DisposableBean {
+
+    private final static Logger log = LoggerFactory.getLogger(ArtifactResolver.class);
+
+    private final XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+
+    private final ParserPool parserPool;
+    private final IDService idService = new IDService();
+    private TimeService timeService = new TimeService();
+
+    private String entityID;
+    private Map<String, String> artifactResolutionServiceURLs;
+    private MessageSigner messageSigner;
+    private int maxConnectionsPerHost = 20;
+    private int timeout = 5000;
+
+    private final Map<String, String[]> servicesBySourceID = new HashMap<String, String[]>();
+    private HttpClient httpClient;
+    private HttpSOAPClient soapClient;
+    private IssuerGenerator issuerGenerator;
+
+    public ArtifactResolver(ParserPool parserPool) {
+        super();
+        this.parserPool = parserPool;
+    }
+
+    @Required
+    public void setEntityID(final String entityID) {
+        this.entityID = entityID;
+    }
+
+    /**
+     * @param artifactResolutionServiceURLs the URLs of the Artifact Resolution Services, by the entity ID of the
+     *                                      identity provider
+     */
+    @Required
+    public void setArtifactResolutionServiceURLs(final Map<String, String> artifactResolutionServiceURLs) {
+        this.artifactResolutionServiceURLs = artifactResolutionServiceURLs;
+    }
+
+    /**
+     * @param messageSigner the signer of the ArtifactResolves, they are not signed when it is not set
+     */
+    public void setMessageSigner(final MessageSigner messageSigner) {
+        this.messageSigner = messageSigner;
+    }
+
+    public void setClock(final Clock clock) {
+        this.timeService = new TimeService(clock);
+    }
+
+    /**
+     * @param maxConnectionsPerHost the number of connections kept open to each Artifact Resolution Service
+     */
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @param timeout the time in milliseconds to connect to and to wait for an Artifact Resolution Service
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        for (Map.Entry<String, String> service : artifactResolutionServiceURLs.entrySet()) {
+            servicesBySourceID.put(sourceIDOf(service.getKey()), new String[]{service.getKey(), service.getValue()});
+        }
+        issuerGenerator = new IssuerGenerator(entityID);
+
+        HttpClientBuilder clientBuilder = new HttpClientBuilder();
+        clientBuilder.setMaxConnectionsPerHost(maxConnectionsPerHost);
+        clientBuilder.setMaxTotalConnections(maxConnectionsPerHost * Math.max(1, servicesBySourceID.size()));
+        clientBuilder.setConnectionTimeout(timeout);
+        clientBuilder.setTcpNoDelay(true);
+        httpClient = clientBuilder.buildClient();
+        httpClient.getParams().setSoTimeout(timeout);
+        httpClient.getParams().setConnectionManagerTimeout(timeout);
+        soapClient = new HttpSOAPClient(httpClient, parserPool);
+    }
+
+    public void destroy() {
+        HttpConnectionManager connectionManager = httpClient == null ? null : httpClient.getHttpConnectionManager();
+        if (connectionManager instanceof MultiThreadedHttpConnectionManager) {
+            ((MultiThreadedHttpConnectionManager) connectionManager).shutdown();
+        }
+    }
+
+    /**
+     * @return the message the artifact refers to
+     */
+    public SAMLObject resolve(String encodedArtifact) throws MessageDecodingException {
+        AbstractSAML2Artifact artifact;
+        try {
+            artifact = Configuration.getSAML2ArtifactBuilderFactory().buildArtifact(encodedArtifact);
+        } catch (RuntimeException e) {
+            throw new MessageDecodingException("Malformed SAML artifact", e);
+        }
+        if (!(artifact instanceof SAML2ArtifactType0004)) {
+            throw new MessageDecodingException("Unsupported SAML artifact type");
+        }
+        String[] service = servicesBySourceID.get(new String(Hex.encode(((SAML2ArtifactType0004) artifact).getSourceID())));
+        if (service == null) {
+            throw new MessageDecodingException("SAML artifact of an unknown identity provider");
+        }
+        String issuer = service[0];
+        String location = service[1];
+
+        ArtifactResolve artifactResolve = generateArtifactResolve(location, encodedArtifact);
+
+        BasicSOAPMessageContext soapContext = new BasicSOAPMessageContext();
+        soapContext.setOutboundMessage(envelopeOf(artifactResolve));
+        long start = System.nanoTime();
+        try {
+            soapClient.send(location, soapContext);
+        } catch (SOAPException e) {
+            throw new MessageDecodingException("Unable to resolve SAML artifact at " + location, e);
+        } catch (SecurityException e) {
+            throw new MessageDecodingException("Unable to resolve SAML artifact at " + location, e);
+        }
+        log.debug("Resolved SAML artifact at {} in {} us", location, (System.nanoTime() - start) / 1000);
+
+        ArtifactResponse artifactResponse = artifactResponseOf(soapContext.getInboundMessage());
+        if (!artifactResolve.getID().equals(artifactResponse.getInResponseTo())) {
+            throw new MessageDecodingException("ArtifactResponse is not a response to ArtifactResolve " + artifactResolve.getID());
+        }
+        if (artifactResponse.getIssuer() != null && !issuer.equals(artifactResponse.getIssuer().getValue())) {
+            throw new MessageDecodingException("ArtifactResponse was issued by " + artifactResponse.getIssuer().getValue() + " instead of " + issuer);
+        }
+        if (artifactResponse.getStatus() == null || artifactResponse.getStatus().getStatusCode() == null
+                || !StatusCode.SUCCESS_URI.equals(artifactResponse.getStatus().getStatusCode().getValue())) {
+            throw new MessageDecodingException("Artifact Resolution Service of " + issuer + " did not resolve the artifact");
+        }
+        if (artifactResponse.getMessage() == null) {
+            throw new MessageDecodingException("SAML artifact is unknown to " + issuer + " or has been resolved already");
+        }
+        return artifactResponse.getMessage();
+    }
+
+    private ArtifactResolve generateArtifactResolve(String location, String encodedArtifact) throws MessageDecodingException {
+        ArtifactResolve artifactResolve = build(ArtifactResolve.DEFAULT_ELEMENT_NAME);
+        artifactResolve.setID(idService.generateID());
+        artifactResolve.setIssueInstant(timeService.getCurrentDateTime());
+        artifactResolve.setDestination(location);
+        artifactResolve.setIssuer(issuerGenerator.generateIssuer());
+        Artifact artifact = build(Artifact.DEFAULT_ELEMENT_NAME);
+        artifact.setArtifact(encodedArtifact);
+        artifactResolve.setArtifact(artifact);
+
+        if (messageSigner != null) {
+            Signature signature = (Signature) builderFactory.getBuilder(Signature.DEFAULT_ELEMENT_NAME).buildObject(Signature.DEFAULT_ELEMENT_NAME);
+            signature.setSigningCredential(messageSigner.getCredential());
+            signature.setSignatureAlgorithm(messageSigner.getSignatureAlgorithmURI());
+            signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+            artifactResolve.setSignature(signature);
+            ((SAMLObjectContentReference) signature.getContentReferences().get(0)).setDigestAlgorithm(EncryptionConstants.ALGO_ID_DIGEST_SHA256);
+            try {
+                Configuration.getMarshallerFactory().getMarshaller(artifactResolve).marshall(artifactResolve);
+                Signer.signObject(signature);
+            } catch (MarshallingException e) {
+                throw new MessageDecodingException("Unable to sign ArtifactResolve", e);
+            } catch (SignatureException e) {
+                throw new MessageDecodingException("Unable to sign ArtifactResolve", e);
+            }
+        }
+        return artifactResolve;
+    }
+
+    private Envelope envelopeOf(XMLObject message) {
+        Body body = (Body) builderFactory.getBuilder(Body.DEFAULT_ELEMENT_NAME).buildObject(Body.DEFAULT_ELEMENT_NAME);
+        body.getUnknownXMLObjects().add(message);
+        Envelope envelope = (Envelope) builderFactory.getBuilder(Envelope.DEFAULT_ELEMENT_NAME).buildObject(Envelope.DEFAULT_ELEMENT_NAME);
+        envelope.setBody(body);
+        return envelope;
+    }
+
+    private ArtifactResponse artifactResponseOf(XMLObject inbound) throws MessageDecodingException {
+        if (inbound instanceof Envelope && ((Envelope) inbound).getBody() != null) {
+            for (XMLObject child : ((Envelope) inbound).getBody().getUnknownXMLObjects()) {
+                if (child instanceof ArtifactResponse) {
+                    return (ArtifactResponse) child;
+                }
+            }
+        }
+        throw new MessageDecodingException("Artifact Resolution Service did not return an ArtifactResponse");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends SAMLObject> T build(QName elementName) {
+        return ((SAMLObjectBuilder<T>) builderFactory.getBuilder(elementName)).buildObject();
+    }
+
+    static String sourceIDOf(String entityID) throws NoSuchAlgorithmException {
+        return new String(Hex.encode(MessageDigest.getInstance("SHA-1").digest(Utf8.encode(entityID))));
+    }
+}
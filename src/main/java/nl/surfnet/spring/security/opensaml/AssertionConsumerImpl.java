@@ -17,18 +17,11 @@
 package nl.surfnet.spring.security.opensaml;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
-import org.apache.commons.lang.StringUtils;
 import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.Attribute;
-import org.opensaml.saml2.core.AttributeStatement;
 import org.opensaml.saml2.core.AuthnStatement;
 import org.opensaml.saml2.core.Response;
-import org.opensaml.saml2.core.StatusCode;
-import org.opensaml.xml.XMLObject;
-import org.opensaml.xml.schema.XSString;
 import org.opensaml.xml.validation.ValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,9 +31,10 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.GrantedAuthorityImpl;
 import org.springframework.security.core.userdetails.UserDetails;
 
+import nl.surfnet.spring.security.opensaml.xml.AttributeIndex;
 import nl.surfnet.spring.security.opensaml.xml.SAML2ValidatorSuite;
 
-public class AssertionConsumerImpl implements AssertionConsumer {
+public class AssertionConsumerImpl implements LoginViewAssertionConsumer {
 
     private final static Logger log = LoggerFactory
             .getLogger(AssertionConsumerImpl.class);
@@ -55,7 +49,12 @@ public class AssertionConsumerImpl implements AssertionConsumer {
     SAML2ValidatorSuite validatorSuite = new SAML2ValidatorSuite();
 
     public UserDetails consume(Response samlResponse) throws AuthenticationException {
+        return consume(new SAMLLoginView(samlResponse));
+    }
+
+    public UserDetails consume(SAMLLoginView loginView) throws AuthenticationException {
 
+        Response samlResponse = loginView.getResponse();
 
         try {
             validatorSuite.validate(samlResponse);
@@ -64,20 +63,20 @@ public class AssertionConsumerImpl implements AssertionConsumer {
             throw new ServiceProviderAuthenticationException("Invalid SAML REsponse Message", ve);
         }
 
-        checkResponseStatus(samlResponse);
+        checkResponseStatus(loginView);
 
-        Assertion assertion = samlResponse.getAssertions().get(0);
+        Assertion assertion = loginView.getAssertion();
 
-        log.debug("authenticationResponseIssuingEntityName {}", samlResponse.getIssuer().getValue());
+        log.debug("authenticationResponseIssuingEntityName {}", loginView.getIssuer());
 
         log.debug("assertion.getID() {}", assertion.getID());
-        log.debug("assertion.getSubject().getNameID().getValue() {}", assertion.getSubject().getNameID().getValue());
+        log.debug("assertion.getSubject().getNameID().getValue() {}", loginView.getNameID());
 
-        AuthnStatement authnStatement = assertion.getAuthnStatements().get(0);
+        AuthnStatement authnStatement = loginView.getAuthnStatement();
 
         log.debug("authnStatement.getAuthnInstant() {}", authnStatement.getAuthnInstant());
 
-        Set<GrantedAuthority> authorities = extractAuthorities(assertion.getAttributeStatements());
+        Set<GrantedAuthority> authorities = extractAuthorities(loginView.getAttributeIndex());
         log.debug("Granted Authorities will be {}", authorities);
 
         log.debug("assertion.getID() {}", assertion.getAuthnStatements());
@@ -86,20 +85,16 @@ public class AssertionConsumerImpl implements AssertionConsumer {
 
     }
 
-    private Set<GrantedAuthority> extractAuthorities(
-            List<AttributeStatement> attributeStatements) {
+    private Set<GrantedAuthority> extractAuthorities(AttributeIndex attributeIndex) {
 
         Set<GrantedAuthority> authorities = new HashSet<GrantedAuthority>();
-        for (AttributeStatement attributeStatement : attributeStatements) {
-            for (Attribute attribute : attributeStatement.getAttributes()) {
-                if (GrantedAuthority.class.getName().equalsIgnoreCase(attribute.getName())) {
-                    log.debug("found Granted Authorities.");
-                    for (XMLObject xmlObj : attribute.getAttributeValues()) {
-                        if (xmlObj instanceof XSString)
-                            authorities.add(new GrantedAuthorityImpl(((XSString) xmlObj).getValue()));
-                    }
-                    return authorities;
+        for (String name : attributeIndex.getNames()) {
+            if (GrantedAuthority.class.getName().equalsIgnoreCase(name)) {
+                log.debug("found Granted Authorities.");
+                for (String value : attributeIndex.getValues(name)) {
+                    authorities.add(new GrantedAuthorityImpl(value));
                 }
+                return authorities;
             }
         }
         // return default
@@ -107,65 +102,67 @@ public class AssertionConsumerImpl implements AssertionConsumer {
         return authorities;
     }
 
-    private void checkResponseStatus(Response samlResponse) {
+    private void checkResponseStatus(SAMLLoginView loginView) {
 
 
-        if (StatusCode.SUCCESS_URI.equals(StringUtils.trim(samlResponse.getStatus().getStatusCode().getValue()))) {
+        if (loginView.isSuccess()) {
 
-            additionalValidationChecksOnSuccessfulResponse(samlResponse);
+            additionalValidationChecksOnSuccessfulResponse(loginView);
 
         } else {
 
-            StringBuilder extraInformation = extractExtraInformation(samlResponse);
+            StringBuilder extraInformation = extractExtraInformation(loginView);
 
             if (extraInformation.length() > 0) {
                 log.warn("Extra information extracted from authentication failure was {}", extraInformation.toString());
 
-                throw new IdentityProviderAuthenticationException("Identity Provider has failed the authentication.", extraInformation.toString());
+                throw new IdentityProviderAuthenticationException("Identity Provider has failed the authentication.", extraInformation.toString(), loginView.getIssuer(),
+                        loginView.getStatusCode(), loginView.getSubStatusCode());
             } else {
-                throw new IdentityProviderAuthenticationException("Identity Provider has failed the authentication.");
+                throw new IdentityProviderAuthenticationException("Identity Provider has failed the authentication.", null, loginView.getIssuer(),
+                        loginView.getStatusCode(), loginView.getSubStatusCode());
             }
 
         }
     }
 
     private void additionalValidationChecksOnSuccessfulResponse(
-            Response samlResponse) {
+            SAMLLoginView loginView) {
         //saml validator suite does not check for assertions on successful auths
-        if (samlResponse.getAssertions().isEmpty()) {
+        if (loginView.getAssertion() == null) {
             throw new ServiceProviderAuthenticationException("Successful Response did not contain any assertions");
         }
 
         //nor authnStatements
-        else if (samlResponse.getAssertions().get(0).getAuthnStatements().isEmpty()) {
+        else if (loginView.getAuthnStatement() == null) {
             throw new ServiceProviderAuthenticationException("Successful Response did not contain an assertions with an AuthnStatement");
         }
 
         //we require at attribute statements
-        else if (samlResponse.getAssertions().get(0).getAttributeStatements().isEmpty()) {
+        else if (loginView.getAttributeIndex() == null) {
             throw new ServiceProviderAuthenticationException("Successful Response did not contain an assertions with an AttributeStatements");
 
         }
         //we will require an issuer
-        else if (samlResponse.getIssuer() == null) {
+        else if (loginView.getIssuer() == null) {
             throw new ServiceProviderAuthenticationException("Successful Response did not contain any Issuer");
 
         }
     }
 
-    private StringBuilder extractExtraInformation(Response samlResponse) {
+    private StringBuilder extractExtraInformation(SAMLLoginView loginView) {
         StringBuilder extraInformation = new StringBuilder();
 
-        if (samlResponse.getStatus().getStatusCode().getStatusCode() != null) {
+        if (loginView.getSubStatusCode() != null) {
 
-            extraInformation.append(samlResponse.getStatus().getStatusCode().getStatusCode().getValue());
+            extraInformation.append(loginView.getSubStatusCode());
         }
 
-        if (samlResponse.getStatus().getStatusMessage() != null) {
+        if (loginView.getStatusMessage() != null) {
             if (extraInformation.length() > 0) {
                 extraInformation.append("  -  ");
             }
-            extraInformation.append(samlResponse.getStatus().getStatusMessage());
+            extraInformation.append(loginView.getStatusMessage());
         }
         return extraInformation;
     }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.crypt.AssertionDecrypter;
+
+/**
+ * Decrypts the EncryptedAssertions of the inbound Response and replaces the {@link SAMLLoginView} of the
+ * {@link SAMLLoginMessageContext} by one that contains the decrypted assertions. The Response itself is left
+ * untouched, so its signature still verifies.
+ * <p/>
+ * The rule has to be configured before the {@link SignatureSecurityPolicyRule}, which then verifies the
+ * signatures of the decrypted assertions as well.
+ */
+public class AssertionDecryptionRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(AssertionDecryptionRule.class);
+
+    private final AssertionDecrypter assertionDecrypter;
+
+    public AssertionDecryptionRule(AssertionDecrypter assertionDecrypter) {
+        super();
+        this.assertionDecrypter = assertionDecrypter;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.CRYPTOGRAPHIC;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (!(messageContext.getInboundMessage() instanceof Response)) {
+            return;
+        }
+        Response response = (Response) messageContext.getInboundMessage();
+        if (response.getEncryptedAssertions().isEmpty()) {
+            return;
+        }
+        if (!(messageContext instanceof SAMLLoginMessageContext)) {
+            throw new SecurityPolicyException("Unable to carry decrypted assertions in " + messageContext.getClass().getName());
+        }
+
+        List<Assertion> decryptedAssertions = new ArrayList<Assertion>(response.getEncryptedAssertions().size());
+        try {
+            for (EncryptedAssertion encryptedAssertion : response.getEncryptedAssertions()) {
+                decryptedAssertions.add(assertionDecrypter.decrypt(encryptedAssertion));
+            }
+        } catch (DecryptionException e) {
+            log.warn("Unable to decrypt assertion of issuer {}: {}", messageContext.getInboundMessageIssuer(), e.getMessage());
+            throw new SecurityPolicyException("Unable to decrypt the EncryptedAssertion", e);
+        }
+        log.debug("Decrypted {} assertions", decryptedAssertions.size());
+        ((SAMLLoginMessageContext) messageContext).setLoginView(new SAMLLoginView(response, decryptedAssertions));
+    }
+}
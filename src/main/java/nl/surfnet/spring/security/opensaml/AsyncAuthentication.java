@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+import nl.surfnet.spring.security.opensaml.util.ConcurrencyLimiter;
+
+/**
+ * One authentication of the {@link SAMLResponseAuthenticationProcessingFilter} that runs on an executor instead of
+ * on the request thread of the container.
+ * <p/>
+ * Decoding, signature verification and provisioning run on the executor. The outcome is stored as a request
+ * attribute and the request is dispatched back to the container, which runs the filter chain again; the filter
+ * then finishes the login with the stored outcome on a container thread, so the session strategy, the success
+ * and failure handlers and the storage of the security context in the session work as they do for synchronous
+ * requests. When the executor is saturated, or the authentication does not finish within the timeout, the
+ * response is completed with a 503.
+ * <p/>
+ * The container recycles a request once it has been completed, so the executor never touches it: everything the
+ * authentication needs is copied into a {@link HttpServletRequestSnapshot} before it is handed over, and the
+ * executor only dispatches the request. An authentication that finishes after the timeout is discarded.
+ * <p/>
+ * This is the only class that refers to the Servlet 3.0 API, so the filter keeps working in Servlet 2.5 containers
+ * as long as no executor is configured.
+ */
+class AsyncAuthentication implements Runnable, AsyncListener {
+
+    private final static Logger log = LoggerFactory.getLogger(AsyncAuthentication.class);
+
+    static final String RESULT_ATTRIBUTE = AsyncAuthentication.class.getName() + ".RESULT";
+
+    private final SAMLResponseAuthenticationProcessingFilter filter;
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final HttpServletRequestSnapshot snapshot;
+    private final String requestedSessionId;
+    private final Object details;
+    private final ConcurrencyLimiter.Permit permit;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private volatile Authentication authentication;
+    private volatile Exception failure;
+
+    private AsyncAuthentication(SAMLResponseAuthenticationProcessingFilter filter, AsyncContext asyncContext,
+                                HttpServletRequest request, HttpServletResponse response, ConcurrencyLimiter.Permit permit) {
+        this.filter = filter;
+        this.asyncContext = asyncContext;
+        this.response = response;
+        this.snapshot = new HttpServletRequestSnapshot(request);
+        this.requestedSessionId = request.getRequestedSessionId();
+        this.details = filter.buildDetails(request);
+        this.permit = permit;
+    }
+
+    /**
+     * Puts the request in asynchronous mode and hands its authentication to the executor.
+     *
+     * @param permit the permit of the authentication, released when it is done, or <code>null</code>
+     * @return <code>false</code> if the request does not support asynchronous processing, in which case nothing
+     *         has been done and the authentication has to run on the calling thread
+     */
+    static boolean start(SAMLResponseAuthenticationProcessingFilter filter, HttpServletRequest request,
+                         HttpServletResponse response, Executor executor, long timeout,
+                         ConcurrencyLimiter.Permit permit) throws IOException {
+        if (!request.isAsyncSupported()) {
+            return false;
+        }
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeout);
+        AsyncAuthentication authentication = new AsyncAuthentication(filter, asyncContext, request, response, permit);
+        asyncContext.addListener(authentication);
+        // read by the filter once the request is dispatched back
+        request.setAttribute(RESULT_ATTRIBUTE, authentication);
+        try {
+            executor.execute(authentication);
+        } catch (RejectedExecutionException e) {
+            log.warn("Authentication executor is saturated, rejecting SAML Response");
+            authentication.releasePermit();
+            authentication.unavailable();
+        }
+        return true;
+    }
+
+    /**
+     * @return the authentication stored by a finished asynchronous authentication
+     */
+    static Authentication resultOf(Object result) throws AuthenticationException, IOException, ServletException {
+        AsyncAuthentication asyncAuthentication = (AsyncAuthentication) result;
+        Exception failure = asyncAuthentication.failure;
+        if (failure == null) {
+            return asyncAuthentication.authentication;
+        }
+        if (failure instanceof AuthenticationException) {
+            throw (AuthenticationException) failure;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof ServletException) {
+            throw (ServletException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new ServletException("Asynchronous authentication failed", failure);
+    }
+
+    public void run() {
+        if (finished.get()) {
+            // timed out while queued
+            releasePermit();
+            return;
+        }
+        try {
+            authentication = filter.authenticate(snapshot, requestedSessionId, details);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            releasePermit();
+        }
+        if (finished.compareAndSet(false, true)) {
+            asyncContext.dispatch();
+        } else {
+            log.debug("Asynchronous authentication finished after its request timed out");
+        }
+    }
+
+    public void onTimeout(AsyncEvent event) throws IOException {
+        log.warn("Asynchronous authentication did not finish within {} ms", asyncContext.getTimeout());
+        unavailable();
+    }
+
+    public void onError(AsyncEvent event) throws IOException {
+        finished.set(true);
+    }
+
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    private void releasePermit() {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    private void unavailable() throws IOException {
+        if (finished.compareAndSet(false, true)) {
+            try {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+}
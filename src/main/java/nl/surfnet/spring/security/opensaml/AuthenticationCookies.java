@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import nl.surfnet.spring.security.opensaml.crypt.TokenSealer;
+import nl.surfnet.spring.security.opensaml.util.Clock;
+
+/**
+ * Keeps the result of a SAML login in a sealed cookie instead of in the HTTP session, so that any node can
+ * authenticate the following requests of the user.
+ * <p/>
+ * The cookie holds the expiration time, the username and the authorities of the authenticated user, one per line,
+ * sealed by a {@link TokenSealer}. The {@link SAMLAuthenticationToken} rebuilt from it has a {@link User} with those
+ * as its principal; any other state of the <code>UserDetails</code> returned by the {@link Provisioner} is lost.
+ */
+public class AuthenticationCookies {
+
+    private final static Logger log = LoggerFactory.getLogger(AuthenticationCookies.class);
+
+    public static final String DEFAULT_COOKIE_NAME = "SAMLAUTH";
+
+    private static final int MAX_COOKIE_LENGTH = 4096;
+
+    private final TokenSealer tokenSealer;
+    private String cookieName = DEFAULT_COOKIE_NAME;
+    private int lifetime = 3600;
+    private boolean secure = true;
+    private Clock clock = Clock.SYSTEM;
+
+    public AuthenticationCookies(TokenSealer tokenSealer) {
+        super();
+        this.tokenSealer = tokenSealer;
+    }
+
+    public void setCookieName(final String cookieName) {
+        this.cookieName = cookieName;
+    }
+
+    /**
+     * @param lifetime the time in seconds a cookie authenticates its user, defaults to an hour
+     */
+    public void setLifetime(final int lifetime) {
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * @param secure whether the cookie is only sent over HTTPS, defaults to <code>true</code>
+     */
+    public void setSecure(final boolean secure) {
+        this.secure = secure;
+    }
+
+    public void setClock(final Clock clock) {
+        this.clock = clock;
+    }
+
+    public String getCookieName() {
+        return cookieName;
+    }
+
+    /**
+     * Adds a cookie for the authenticated user to the response.
+     *
+     * @throws IllegalArgumentException if the username or an authority contains a line break
+     */
+    public void write(Authentication authentication, HttpServletRequest request, HttpServletResponse response) {
+        String username = authentication.getName();
+        if (username == null || username.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Username can not be stored in a cookie: " + username);
+        }
+        StringBuilder payload = new StringBuilder(64);
+        payload.append(clock.currentTimeMillis() / 1000 + lifetime).append('\n').append(username);
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            // a line break would add authorities when the cookie is read
+            String name = authority.getAuthority();
+            if (name == null || name.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("Authority of " + username + " can not be stored in a cookie: " + name);
+            }
+            payload.append('\n').append(name);
+        }
+        String value = tokenSealer.seal(payload.toString());
+        if (value.length() > MAX_COOKIE_LENGTH) {
+            log.warn("Authentication cookie of {} is {} characters, browsers may drop it", username, value.length());
+        }
+        response.addCookie(cookie(value, lifetime, request));
+    }
+
+    /**
+     * @return the authentication in the cookie of the request, or <code>null</code> if it has none or one that was
+     *         not issued by this service provider or has expired
+     */
+    public Authentication read(HttpServletRequest request) {
+        String value = null;
+        Cookie[] cookies = request.getCookies();
+        for (int i = 0; cookies != null && i < cookies.length && value == null; i++) {
+            if (cookieName.equals(cookies[i].getName())) {
+                value = cookies[i].getValue();
+            }
+        }
+        if (value == null) {
+            return null;
+        }
+        String payload = tokenSealer.unseal(value);
+        if (payload == null) {
+            log.debug("Ignoring authentication cookie that was not issued by this service provider");
+            return null;
+        }
+
+        int end = payload.indexOf('\n');
+        if (end < 0) {
+            return null;
+        }
+        long expiration;
+        try {
+            expiration = Long.parseLong(payload.substring(0, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (expiration * 1000 <= clock.currentTimeMillis()) {
+            log.debug("Ignoring expired authentication cookie");
+            return null;
+        }
+
+        int start = end + 1;
+        end = payload.indexOf('\n', start);
+        String username = payload.substring(start, end < 0 ? payload.length() : end);
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+        while (end >= 0) {
+            start = end + 1;
+            end = payload.indexOf('\n', start);
+            authorities.add(new SimpleGrantedAuthority(payload.substring(start, end < 0 ? payload.length() : end)));
+        }
+        UserDetails user = new User(username, "", authorities);
+        return new SAMLAuthenticationToken(user, null, authorities);
+    }
+
+    /**
+     * Removes the cookie from the browser.
+     */
+    public void clear(HttpServletRequest request, HttpServletResponse response) {
+        response.addCookie(cookie("", 0, request));
+    }
+
+    private Cookie cookie(String value, int maxAge, HttpServletRequest request) {
+        Cookie cookie = new Cookie(cookieName, value);
+        String contextPath = request.getContextPath();
+        cookie.setPath(contextPath == null || contextPath.length() == 0 ? "/" : contextPath);
+        cookie.setMaxAge(maxAge);
+        cookie.setSecure(secure);
+        cookie.setHttpOnly(true);
+        return cookie;
+    }
+}
@@ -17,6 +17,8 @@
 package nl.surfnet.spring.security.opensaml;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -24,11 +26,29 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.web.authentication.AuthenticationFailureHandler;
 import org.springframework.security.web.savedrequest.RequestCache;
 import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.web.util.HtmlUtils;
 
+import nl.surfnet.spring.security.opensaml.util.DecayingFailureCache;
+import nl.surfnet.spring.security.opensaml.util.IdentityProviderCircuitBreaker;
+
+/**
+ * Sends users whose login was failed by the identity provider back to the page they requested, which starts a new
+ * login, and everybody else to a 403.
+ * <p/>
+ * With a retry budget the number of times a user is sent back is limited: the failures of a browser (its session,
+ * or else its address and RelayState) are counted in a {@link DecayingFailureCache}, the second and later retries are
+ * delayed exponentially by a page that refreshes after the backoff, and once the budget is spent the user is sent
+ * to the error page. With an {@link IdentityProviderCircuitBreaker} users are not sent back to an identity provider
+ * that is failing for many users; only Responder statuses that are not about the user, such as AuthnFailed or
+ * NoPassive, count as failures of the identity provider.
+ */
+@ManagedResource(description = "Retries of logins failed by identity providers")
 public class AuthenticationFailureHandlerImpl implements AuthenticationFailureHandler {
 
     private final static Logger logger = LoggerFactory
@@ -36,12 +56,61 @@ public class AuthenticationFailureHandlerImpl implements AuthenticationFailureHa
 
     private final RequestCache requestCache;
 
+    private DecayingFailureCache retryBudget;
+    private int maxRetries = 3;
+    private long initialBackoff = 1000L;
+    private long maxBackoff = 30000L;
+    private IdentityProviderCircuitBreaker circuitBreaker;
+    private String errorPage;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong delayedRetries = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
 
     public AuthenticationFailureHandlerImpl(RequestCache requestCache) {
         super();
         this.requestCache = requestCache;
     }
 
+    /**
+     * @param retryBudget the recent failures per browser
+     */
+    public void setRetryBudget(DecayingFailureCache retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    /**
+     * @param maxRetries the number of recent failures after which a browser is no longer sent back, defaults to 3
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param initialBackoff the delay in milliseconds of the second retry, doubled for every further retry
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * @param maxBackoff the maximum delay in milliseconds of a retry
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public void setCircuitBreaker(IdentityProviderCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param errorPage the context relative URL users are sent to when they are not retried, instead of a 403
+     */
+    public void setErrorPage(String errorPage) {
+        this.errorPage = errorPage;
+    }
+
     public void onAuthenticationFailure(HttpServletRequest request,
                                         HttpServletResponse response,
                                         AuthenticationException authenticationException)
@@ -54,11 +123,87 @@ public class AuthenticationFailureHandlerImpl implements AuthenticationFailureHa
         if (authenticationException instanceof IdentityProviderAuthenticationException && savedRequest != null) {
 
             logger.warn("Authn Failure reported by the IDP.", authenticationException);
-            logger.debug("Retry original request of {}", savedRequest.getRedirectUrl());
-            response.sendRedirect(savedRequest.getRedirectUrl());
+
+            IdentityProviderAuthenticationException failure = (IdentityProviderAuthenticationException) authenticationException;
+            String issuer = failure.getIssuer();
+            if (circuitBreaker != null && issuer != null) {
+                // a user that fails to log in says nothing about the health of the identity provider
+                if (failure.isResponderFailure()) {
+                    circuitBreaker.recordFailure(issuer);
+                }
+                if (circuitBreaker.refuse(issuer)) {
+                    logger.warn("Identity Provider {} is failing too often, not retrying", issuer);
+                    abandon(request, response);
+                    return;
+                }
+            }
+
+            long backoff = 0;
+            if (retryBudget != null) {
+                int attempt = (int) Math.round(retryBudget.recordFailure(clientOf(request)));
+                if (attempt > maxRetries) {
+                    logger.warn("Retry budget of {} spent, not retrying", clientOf(request));
+                    abandon(request, response);
+                    return;
+                }
+                backoff = attempt < 2 ? 0 : Math.min(maxBackoff, initialBackoff << Math.min(attempt - 2, 30));
+            }
+
+            retries.incrementAndGet();
+            logger.debug("Retry original request of {} in {} ms", savedRequest.getRedirectUrl(), backoff);
+            if (backoff > 0) {
+                delayedRetries.incrementAndGet();
+                sendDelayedRedirect(response, savedRequest.getRedirectUrl(), backoff);
+            } else {
+                response.sendRedirect(savedRequest.getRedirectUrl());
+            }
         } else {
             logger.warn("Unrecoverable authn failure. Sending to Forbidden", authenticationException);
             response.sendError(HttpServletResponse.SC_FORBIDDEN);
         }
     }
+
+    @ManagedAttribute(description = "Users sent back after a failure of their identity provider")
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @ManagedAttribute(description = "Users sent back after a backoff")
+    public long getDelayedRetries() {
+        return delayedRetries.get();
+    }
+
+    @ManagedAttribute(description = "Users not sent back because of the retry budget or circuit breaker")
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    private void abandon(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        abandoned.incrementAndGet();
+        if (errorPage != null) {
+            response.sendRedirect(request.getContextPath() + errorPage);
+        } else {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+        }
+    }
+
+    private String clientOf(HttpServletRequest request) {
+        if (request.getRequestedSessionId() != null) {
+            return request.getRequestedSessionId();
+        }
+        return request.getRemoteAddr() + "|" + request.getParameter(RelayStateRequestCache.RELAY_STATE_PARAM_NAME);
+    }
+
+    private void sendDelayedRedirect(HttpServletResponse response, String url, long backoff) throws IOException {
+        String escapedUrl = HtmlUtils.htmlEscape(url);
+        long seconds = (backoff + 999) / 1000;
+        response.setContentType("text/html;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        PrintWriter writer = response.getWriter();
+        writer.print("<!DOCTYPE html><html><head><meta http-equiv=\"refresh\" content=\"" + seconds + ";url="
+                + escapedUrl + "\"><title>Login failed</title></head><body><p>Your login failed. You will be sent to "
+                + "your identity provider again in " + seconds + " seconds, or <a href=\"" + escapedUrl
+                + "\">try again now</a>.</p></body></html>");
+        writer.flush();
+    }
 }
@@ -45,6 +45,14 @@ public class AuthnRequestGenerator {
     }
 
     public AuthnRequest generateAuthnRequest(String destination, String responseLocation) {
+        return generateAuthnRequest(destination, responseLocation, null);
+    }
+
+    /**
+     * @param protocolBinding the binding the Response is to be sent with, or <code>null</code> to leave it to the
+     *                        identity provider
+     */
+    public AuthnRequest generateAuthnRequest(String destination, String responseLocation, String protocolBinding) {
 
         AuthnRequestBuilder authnRequestBuilder = (AuthnRequestBuilder) builderFactory.getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
 
@@ -54,6 +62,7 @@ public class AuthnRequestGenerator {
         authnRequest.setID(idService.generateID());
         authnRequest.setIssueInstant(timeService.getCurrentDateTime());
         authnRequest.setDestination(destination);
+        authnRequest.setProtocolBinding(protocolBinding);
 
         authnRequest.setIssuer(issuerGenerator.generateIssuer());
 
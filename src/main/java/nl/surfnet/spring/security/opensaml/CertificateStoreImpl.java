@@ -18,47 +18,113 @@ package nl.surfnet.spring.security.opensaml;
 
 import java.io.ByteArrayInputStream;
 import java.security.KeyStore;
-import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 
-public class CertificateStoreImpl implements CertificateStore, InitializingBean {
+public class CertificateStoreImpl implements RolloverCertificateStore, InitializingBean {
     private String keystorePassword;
-    private KeyStore keyStore;
+    private volatile Certificates current;
     private Map<String, String> certificates;
+    private final AtomicLong revision = new AtomicLong();
 
+    /**
+     * @param certificates the base64 encoded certificates keyed by entityID; an identity provider that rolls over
+     *                     its key can have several certificates, separated by commas
+     */
     @Required
     public void setCertificates(Map<String, String> certificates) {
         this.certificates = certificates;
     }
 
     public KeyStore getKeyStore() {
-        return keyStore;
+        return current.keyStore;
+    }
+
+    public Set<String> getEntityIDs() {
+        return current.byEntityID.keySet();
+    }
+
+    public List<X509Certificate> getCertificates(String entityID) {
+        List<X509Certificate> entityCertificates = current.byEntityID.get(entityID);
+        return entityCertificates == null ? Collections.<X509Certificate>emptyList() : entityCertificates;
+    }
+
+    public long getRevision() {
+        return revision.get();
     }
 
     public void afterPropertiesSet() throws Exception {
         keystorePassword = "secret";
+        current = createCertificates(certificates);
+    }
+
+    /**
+     * Replaces all certificates at runtime, for instance when an identity provider rolls over its key.
+     * Components that cache keys notice the change through {@link #getRevision()}.
+     */
+    public void updateCertificates(Map<String, String> certificates) {
+        Certificates newCertificates = createCertificates(certificates);
+        this.certificates = certificates;
+        this.current = newCertificates;
+        revision.incrementAndGet();
+    }
+
+    private Certificates createCertificates(Map<String, String> certificates) {
         try {
-            keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(null, keystorePassword.toCharArray());
+            KeyStore newKeyStore = KeyStore.getInstance("JKS");
+            newKeyStore.load(null, keystorePassword.toCharArray());
+            Map<String, List<X509Certificate>> byEntityID = new HashMap<String, List<X509Certificate>>();
+            final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
             for (Map.Entry<String, String> entry : certificates.entrySet()) {
-                appendToKeyStore(entry.getKey(), entry.getValue());
+                List<X509Certificate> entityCertificates = new ArrayList<X509Certificate>();
+                for (String pemCert : StringUtils.split(entry.getValue(), ',')) {
+                    entityCertificates.add(parseCertificate(certificateFactory, pemCert.trim()));
+                }
+                if (!entityCertificates.isEmpty()) {
+                    // only the first certificate goes in the keystore, an alias cannot tell which entity an additional one belongs to
+                    newKeyStore.setCertificateEntry(entry.getKey(), entityCertificates.get(0));
+                    byEntityID.put(entry.getKey(), Collections.unmodifiableList(entityCertificates));
+                }
             }
+            return new Certificates(newKeyStore, Collections.unmodifiableMap(byEntityID));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void appendToKeyStore(String keyAlias, String pemCert) throws Exception {
+    private X509Certificate parseCertificate(CertificateFactory certificateFactory, String pemCert) throws Exception {
         String wrappedCert = "-----BEGIN CERTIFICATE-----\n" + pemCert + "\n-----END CERTIFICATE-----";
         ByteArrayInputStream certificateInputStream = new ByteArrayInputStream(wrappedCert.getBytes());
-        final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-        final Certificate cert = certificateFactory.generateCertificate(certificateInputStream);
-        IOUtils.closeQuietly(certificateInputStream);
-        keyStore.setCertificateEntry(keyAlias, cert);
+        try {
+            return (X509Certificate) certificateFactory.generateCertificate(certificateInputStream);
+        } finally {
+            IOUtils.closeQuietly(certificateInputStream);
+        }
+    }
+
+    /**
+     * The keystore and the certificates by entityID, swapped together on an update.
+     */
+    private static final class Certificates {
+
+        private final KeyStore keyStore;
+        private final Map<String, List<X509Certificate>> byEntityID;
+
+        Certificates(KeyStore keyStore, Map<String, List<X509Certificate>> byEntityID) {
+            this.keyStore = keyStore;
+            this.byEntityID = byEntityID;
+        }
     }
 }
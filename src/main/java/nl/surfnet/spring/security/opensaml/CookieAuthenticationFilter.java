@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.GenericFilterBean;
+
+/**
+ * Authenticates requests with the cookie issued by the {@link CookieAuthenticationSuccessHandler}, when the
+ * security context is not authenticated yet. Meant for a <code>security:http</code> with
+ * <code>create-session="stateless"</code>, placed after the security context filter.
+ */
+public class CookieAuthenticationFilter extends GenericFilterBean {
+
+    private final static Logger log = LoggerFactory.getLogger(CookieAuthenticationFilter.class);
+
+    private final AuthenticationCookies authenticationCookies;
+
+    public CookieAuthenticationFilter(AuthenticationCookies authenticationCookies) {
+        super();
+        this.authenticationCookies = authenticationCookies;
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        Authentication current = SecurityContextHolder.getContext().getAuthentication();
+        if (current == null || current instanceof AnonymousAuthenticationToken) {
+            Authentication authentication = authenticationCookies.read((HttpServletRequest) request);
+            if (authentication != null) {
+                log.debug("Authenticated {} from cookie", authentication.getName());
+                SecurityContextHolder.getContext().setAuthentication(authentication);
+            }
+        }
+        chain.doFilter(request, response);
+    }
+}
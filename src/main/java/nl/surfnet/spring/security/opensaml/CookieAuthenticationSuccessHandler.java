@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+
+/**
+ * Issues an {@link AuthenticationCookies} cookie after a successful SAML login, then lets another handler send the
+ * user on.
+ */
+public class CookieAuthenticationSuccessHandler implements AuthenticationSuccessHandler {
+
+    private final AuthenticationCookies authenticationCookies;
+    private final AuthenticationSuccessHandler delegate;
+
+    public CookieAuthenticationSuccessHandler(AuthenticationCookies authenticationCookies, AuthenticationSuccessHandler delegate) {
+        super();
+        this.authenticationCookies = authenticationCookies;
+        this.delegate = delegate;
+    }
+
+    public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response,
+                                        Authentication authentication) throws IOException, ServletException {
+        authenticationCookies.write(authentication, request, response);
+        delegate.onAuthenticationSuccess(request, response, authentication);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.binding.decoding.BaseSAML2MessageDecoder;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+
+/**
+ * HTTP-Artifact decoder that resolves the artifact with an {@link ArtifactResolver}, after which the message goes
+ * through the security policy like a posted one.
+ */
+public class HTTPArtifactResolvingDecoder extends BaseSAML2MessageDecoder {
+
+    public static final String SAML_ARTIFACT_PARAM_NAME = "SAMLart";
+
+    private final ArtifactResolver artifactResolver;
+
+    public HTTPArtifactResolvingDecoder(ArtifactResolver artifactResolver) {
+        super();
+        this.artifactResolver = artifactResolver;
+    }
+
+    public String getBindingURI() {
+        return SAMLConstants.SAML2_ARTIFACT_BINDING_URI;
+    }
+
+    @Override
+    protected boolean isIntendedDestinationEndpointURIRequired(SAMLMessageContext samlMsgCtx) {
+        return false;
+    }
+
+    @Override
+    protected void doDecode(MessageContext messageContext) throws MessageDecodingException {
+        if (!(messageContext instanceof SAMLMessageContext)) {
+            throw new MessageDecodingException("Invalid message context type, this decoder only supports SAMLMessageContext");
+        }
+        if (!(messageContext.getInboundMessageTransport() instanceof HTTPInTransport)) {
+            throw new MessageDecodingException("Invalid inbound message transport type, this decoder only supports HTTPInTransport");
+        }
+        SAMLMessageContext samlMessageContext = (SAMLMessageContext) messageContext;
+        HTTPInTransport inTransport = (HTTPInTransport) messageContext.getInboundMessageTransport();
+
+        String encodedArtifact = inTransport.getParameterValue(SAML_ARTIFACT_PARAM_NAME);
+        if (StringUtils.isBlank(encodedArtifact)) {
+            throw new MessageDecodingException("Request did not contain the " + SAML_ARTIFACT_PARAM_NAME + " parameter");
+        }
+        samlMessageContext.setRelayState(inTransport.getParameterValue("RelayState"));
+
+        SAMLObject samlMessage = artifactResolver.resolve(encodedArtifact);
+        samlMessageContext.setInboundMessage(samlMessage);
+        samlMessageContext.setInboundSAMLMessage(samlMessage);
+
+        populateMessageContext(samlMessageContext);
+    }
+
+    @Override
+    protected String getActualReceiverEndpointURI(SAMLMessageContext messageContext) throws MessageDecodingException {
+        if (messageContext.getInboundMessageTransport() instanceof HTTPRequestURLTransport) {
+            return ((HTTPRequestURLTransport) messageContext.getInboundMessageTransport()).getRequestURL();
+        }
+        return super.getActualReceiverEndpointURI(messageContext);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.opensaml.ws.transport.http.HTTPInTransport;
+
+/**
+ * An inbound HTTP transport that knows the URL it was received on. Front ends that are not servlet based
+ * implement it, so that the Destination of a SAML message can be checked against the URL the message was
+ * actually posted to.
+ */
+public interface HTTPRequestURLTransport extends HTTPInTransport {
+
+    /**
+     * @return the URL of the request, with scheme, host, port and path but without query string, like
+     *         <code>HttpServletRequest.getRequestURL()</code>
+     */
+    String getRequestURL();
+
+}
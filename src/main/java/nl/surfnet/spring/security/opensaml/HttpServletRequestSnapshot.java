@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opensaml.xml.security.credential.Credential;
+
+/**
+ * Copy of the parts of an <code>HttpServletRequest</code> that decoding a SAML message needs: method, URL,
+ * parameters, headers and addresses.
+ * <p/>
+ * An {@link AsyncAuthentication} decodes from the copy instead of from the request, as the container recycles the
+ * request once it has been completed. Request attributes and the body are not copied, so decoders that read the
+ * body themselves, such as SOAP decoders, cannot use it.
+ */
+class HttpServletRequestSnapshot implements HTTPRequestURLTransport {
+
+    private final String method;
+    private final String requestURL;
+    private final String protocol;
+    private final String characterEncoding;
+    private final String peerAddress;
+    private final String peerDomainName;
+    private final Map<String, String[]> parameters;
+    private final Map<String, String> headers;
+    private boolean authenticated;
+    private boolean confidential;
+    private boolean integrityProtected;
+
+    @SuppressWarnings("unchecked")
+    HttpServletRequestSnapshot(HttpServletRequest request) {
+        super();
+        this.method = request.getMethod();
+        this.requestURL = request.getRequestURL().toString();
+        this.protocol = request.getProtocol();
+        this.characterEncoding = request.getCharacterEncoding();
+        this.peerAddress = request.getRemoteAddr();
+        this.peerDomainName = request.getRemoteHost();
+        this.parameters = new HashMap<String, String[]>((Map<String, String[]>) request.getParameterMap());
+        this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (Enumeration<String> names = request.getHeaderNames(); names != null && names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            headers.put(name, request.getHeader(name));
+        }
+        this.confidential = request.isSecure();
+    }
+
+    public String getRequestURL() {
+        return requestURL;
+    }
+
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    public String getPeerDomainName() {
+        return peerDomainName;
+    }
+
+    public InputStream getIncomingStream() {
+        return null;
+    }
+
+    public String getHeaderValue(String name) {
+        return headers.get(name);
+    }
+
+    public String getHTTPMethod() {
+        return method;
+    }
+
+    public int getStatusCode() {
+        return -1;
+    }
+
+    public String getParameterValue(String name) {
+        String[] values = parameters.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    public List<String> getParameterValues(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? Collections.<String>emptyList() : Arrays.asList(values);
+    }
+
+    public HTTP_VERSION getVersion() {
+        if ("HTTP/1.0".equals(protocol)) {
+            return HTTP_VERSION.HTTP1_0;
+        } else if ("HTTP/1.1".equals(protocol)) {
+            return HTTP_VERSION.HTTP1_1;
+        }
+        return null;
+    }
+
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    public Credential getLocalCredential() {
+        return null;
+    }
+
+    public Credential getPeerCredential() {
+        return null;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    public boolean isConfidential() {
+        return confidential;
+    }
+
+    public void setConfidential(boolean confidential) {
+        this.confidential = confidential;
+    }
+
+    public boolean isIntegrityProtected() {
+        return integrityProtected;
+    }
+
+    public void setIntegrityProtected(boolean integrityProtected) {
+        this.integrityProtected = integrityProtected;
+    }
+}
@@ -16,10 +16,27 @@
 
 package nl.surfnet.spring.security.opensaml;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.opensaml.saml2.core.StatusCode;
 import org.springframework.security.core.AuthenticationException;
 
 public class IdentityProviderAuthenticationException extends AuthenticationException {
 
+    /**
+     * Second-level statuses about the user rather than about the identity provider.
+     */
+    private static final Set<String> USER_STATUS_CODES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            StatusCode.AUTHN_FAILED_URI, StatusCode.NO_PASSIVE_URI, StatusCode.NO_AUTHN_CONTEXT_URI,
+            StatusCode.REQUEST_DENIED_URI, StatusCode.UNKNOWN_PRINCIPAL_URI)));
+
+    private String issuer;
+    private String statusCode;
+    private String subStatusCode;
+
     public IdentityProviderAuthenticationException(String msg, Object extraInformation) {
         super(msg, extraInformation);
     }
@@ -29,4 +46,47 @@ public class IdentityProviderAuthenticationException extends AuthenticationExcep
         super(msg);
     }
 
+    /**
+     * @param issuer the entityID of the identity provider that failed the authentication
+     */
+    public IdentityProviderAuthenticationException(String msg, Object extraInformation, String issuer) {
+        super(msg, extraInformation);
+        this.issuer = issuer;
+    }
+
+    /**
+     * @param issuer        the entityID of the identity provider that failed the authentication
+     * @param statusCode    the top-level status code of the Response
+     * @param subStatusCode the second-level status code of the Response, if any
+     */
+    public IdentityProviderAuthenticationException(String msg, Object extraInformation, String issuer,
+                                                   String statusCode, String subStatusCode) {
+        this(msg, extraInformation, issuer);
+        this.statusCode = statusCode;
+        this.subStatusCode = subStatusCode;
+    }
+
+    /**
+     * @return the entityID of the identity provider that failed the authentication, if known
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getStatusCode() {
+        return statusCode;
+    }
+
+    public String getSubStatusCode() {
+        return subStatusCode;
+    }
+
+    /**
+     * @return whether the identity provider failed on its own side, as opposed to rejecting the request or the
+     *         user, for instance with AuthnFailed or NoPassive
+     */
+    public boolean isResponderFailure() {
+        return StatusCode.RESPONDER_URI.equals(statusCode) && !USER_STATUS_CODES.contains(subStatusCode);
+    }
+
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.saml2.core.StatusResponseType;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.util.OutstandingRequestStore;
+
+/**
+ * Consumes the request the response is for. Runs after all other rules, so a forged response cannot take away
+ * the request of the real one. Rejects the response if another response to the same request was accepted first.
+ */
+public class InResponseToConsumeRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(InResponseToConsumeRule.class);
+
+    private final OutstandingRequestStore outstandingRequestStore;
+
+    public InResponseToConsumeRule(OutstandingRequestStore outstandingRequestStore) {
+        super();
+        this.outstandingRequestStore = outstandingRequestStore;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.COMMIT;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (!(messageContext.getInboundMessage() instanceof StatusResponseType)) {
+            return;
+        }
+        String inResponseTo = ((StatusResponseType) messageContext.getInboundMessage()).getInResponseTo();
+        if (StringUtils.isNotBlank(inResponseTo) && !outstandingRequestStore.consume(inResponseTo)) {
+            log.warn("Request '{}' has already been answered", inResponseTo);
+            throw new SecurityPolicyException("Request '" + inResponseTo + "' has already been answered");
+        }
+    }
+}
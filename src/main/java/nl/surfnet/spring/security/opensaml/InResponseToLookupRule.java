@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.saml2.core.StatusResponseType;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.util.OutstandingRequestStore;
+
+/**
+ * Rejects responses to requests that this node did not send or that have expired, before the signature is
+ * verified. Unsolicited responses, without InResponseTo, are rejected too unless they are allowed. The request
+ * is only consumed by the {@link InResponseToConsumeRule}, once the response has been verified.
+ */
+public class InResponseToLookupRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(InResponseToLookupRule.class);
+
+    private final OutstandingRequestStore outstandingRequestStore;
+    private boolean allowUnsolicited = true;
+
+    public InResponseToLookupRule(OutstandingRequestStore outstandingRequestStore) {
+        super();
+        this.outstandingRequestStore = outstandingRequestStore;
+    }
+
+    /**
+     * @param allowUnsolicited whether responses without InResponseTo, such as IdP initiated logins, are accepted
+     */
+    public void setAllowUnsolicited(final boolean allowUnsolicited) {
+        this.allowUnsolicited = allowUnsolicited;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.LOOKUP;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (!(messageContext.getInboundMessage() instanceof StatusResponseType)) {
+            return;
+        }
+        String inResponseTo = ((StatusResponseType) messageContext.getInboundMessage()).getInResponseTo();
+        if (StringUtils.isBlank(inResponseTo)) {
+            if (!allowUnsolicited) {
+                log.warn("Rejecting unsolicited response of issuer {}", messageContext.getInboundMessageIssuer());
+                throw new SecurityPolicyException("Unsolicited responses are not allowed");
+            }
+            return;
+        }
+        if (!outstandingRequestStore.isOutstanding(inResponseTo)) {
+            log.warn("Rejecting response of issuer {} to unknown or expired request '{}'", messageContext.getInboundMessageIssuer(), inResponseTo);
+            throw new SecurityPolicyException("Response to unknown or expired request '" + inResponseTo + "'");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.util.Clock;
+
+/**
+ * Checks that the message was issued within the valid time, allowing for clock skew. Does the same as the
+ * OpenSAML {@link org.opensaml.common.binding.security.IssueInstantRule}, but takes the current time from a
+ * {@link Clock} instead of creating a DateTime for every message.
+ */
+public class IssueInstantCheckRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(IssueInstantCheckRule.class);
+
+    private final long clockSkew;
+    private final long expires;
+    private final Clock clock;
+
+    /**
+     * @param clockSkew the clock skew in seconds
+     * @param expires   the time in seconds a message is valid after it has been issued
+     */
+    public IssueInstantCheckRule(int clockSkew, int expires, Clock clock) {
+        super();
+        this.clockSkew = clockSkew * 1000L;
+        this.expires = expires * 1000L;
+        this.clock = clock;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.TEMPORAL;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (!(messageContext instanceof SAMLMessageContext)) {
+            log.debug("Invalid message context type, this policy rule only supports SAMLMessageContext");
+            return;
+        }
+        DateTime issueInstant = ((SAMLMessageContext) messageContext).getInboundSAMLMessageIssueInstant();
+        if (issueInstant == null) {
+            log.warn("Inbound SAML message issue instant not present in message context");
+            throw new SecurityPolicyException("Inbound SAML message issue instant not present in message context");
+        }
+        long issued = issueInstant.getMillis();
+        long now = clock.currentTimeMillis();
+        if (issued > now + clockSkew) {
+            log.warn("Message was not yet valid: message time was {}, current time is {}", issueInstant, new DateTime(now));
+            throw new SecurityPolicyException("Message was rejected because was issued in the future");
+        }
+        if (issued + clockSkew + expires < now) {
+            log.warn("Message was expired: message issue time was {}, current time is {}", issueInstant, new DateTime(now));
+            throw new SecurityPolicyException("Message was rejected due to issue instant expiration");
+        }
+    }
+}
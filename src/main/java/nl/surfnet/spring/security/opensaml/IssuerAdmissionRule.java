@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.ws.security.SecurityPolicyRule;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+
+import nl.surfnet.spring.security.opensaml.util.DecayingFailureCache;
+
+/**
+ * Admits only messages of issuers that have credentials in the {@link CertificateStore}, before any other rule
+ * looks at the message.
+ * <p/>
+ * The known entityIDs are kept in an immutable set that is swapped as a whole on {@link #refresh()}, so the
+ * lookup takes no locks. They are compared case-insensitively, as the entityIDs of a plain {@link CertificateStore}
+ * come from the aliases of its keystore, which keystores such as JKS lower-case.
+ * <p/>
+ * Responses are posted by browsers, so a client address that keeps sending messages that fail the cryptographic
+ * rules (signature verification and decryption) is rejected straight away until its failure score in the
+ * {@link DecayingFailureCache} has decayed. Other failures, such as replays or clock skew, are benign and do not
+ * count, nor do the rejections of a blocked client, so the score decays while the client keeps trying.
+ */
+public class IssuerAdmissionRule implements InitializingBean, CostAwareSecurityPolicyRule, SecurityPolicyFailureListener {
+
+    private final static Logger log = LoggerFactory.getLogger(IssuerAdmissionRule.class);
+
+    private final DecayingFailureCache failureCache;
+    private RolloverCertificateStore certificateStore;
+    private String clientAddressHeader;
+    private volatile Set<String> knownIssuers = Collections.emptySet();
+    private volatile long certificateStoreRevision;
+
+    public IssuerAdmissionRule(DecayingFailureCache failureCache) {
+        super();
+        this.failureCache = failureCache;
+    }
+
+    @Required
+    public void setCertificateStore(final CertificateStore certificateStore) {
+        this.certificateStore = KeyStoreCertificateStoreAdapter.adapt(certificateStore);
+    }
+
+    /**
+     * @param clientAddressHeader the header in which a trusted reverse proxy passes the address of the client, such
+     *                            as <code>X-Forwarded-For</code>; the last address in it is used, as that is the one
+     *                            the proxy added. Only set this when all requests pass the proxy, as clients can send
+     *                            the header themselves. Without it the peer address of the request is used.
+     */
+    public void setClientAddressHeader(final String clientAddressHeader) {
+        this.clientAddressHeader = clientAddressHeader;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        refresh();
+    }
+
+    /**
+     * Reloads the known entityIDs from the certificate store.
+     */
+    public void refresh() {
+        certificateStoreRevision = certificateStore.getRevision();
+        Set<String> entityIDs = new HashSet<String>();
+        for (String entityID : certificateStore.getEntityIDs()) {
+            entityIDs.add(entityID.toLowerCase(Locale.ENGLISH));
+        }
+        knownIssuers = Collections.unmodifiableSet(entityIDs);
+        log.debug("Known issuers are {}", knownIssuers);
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.STRUCTURAL;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (certificateStore.getRevision() != certificateStoreRevision) {
+            refresh();
+        }
+        String issuer = messageContext.getInboundMessageIssuer();
+        if (StringUtils.isBlank(issuer)) {
+            throw new SecurityPolicyException("Inbound message has no issuer");
+        }
+        if (!isKnown(issuer)) {
+            log.warn("Rejecting message of unknown issuer {}", issuer);
+            throw new SecurityPolicyException("Issuer " + issuer + " has no credentials in the certificate store");
+        }
+        String client = clientAddress(messageContext);
+        if (failureCache.isBlocked(client)) {
+            log.warn("Rejecting message of issuer {} from {}, too many recent failures", issuer, client);
+            throw new SecurityPolicyException("Too many failed messages from " + client);
+        }
+    }
+
+    public void onSecurityPolicyFailure(MessageContext messageContext, SecurityPolicyRule failedRule,
+                                        SecurityPolicyException exception) {
+        if (SecurityPolicyDelegate.costOf(failedRule) == RuleCost.CRYPTOGRAPHIC) {
+            failureCache.recordFailure(clientAddress(messageContext));
+        }
+    }
+
+    private boolean isKnown(String issuer) {
+        return knownIssuers.contains(issuer.toLowerCase(Locale.ENGLISH));
+    }
+
+    private String clientAddress(MessageContext messageContext) {
+        if (!(messageContext.getInboundMessageTransport() instanceof HTTPInTransport)) {
+            return "";
+        }
+        HTTPInTransport transport = (HTTPInTransport) messageContext.getInboundMessageTransport();
+        if (clientAddressHeader != null) {
+            String forwarded = transport.getHeaderValue(clientAddressHeader);
+            if (StringUtils.isNotBlank(forwarded)) {
+                return StringUtils.trim(StringUtils.substringAfterLast("," + forwarded, ","));
+            }
+        }
+        return transport.getPeerAddress();
+    }
+}
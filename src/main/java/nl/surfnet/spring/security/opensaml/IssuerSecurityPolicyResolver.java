@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicy;
+import org.opensaml.ws.security.SecurityPolicyResolver;
+import org.opensaml.xml.security.SecurityException;
+
+/**
+ * Resolves the security policy of an inbound message by its issuer, so that identity providers can have their own
+ * clock skew, replay window and rules.
+ * <p/>
+ * The policies are given when the resolver is created and kept in an immutable map, together with the singleton
+ * lists returned by {@link #resolve(MessageContext)}, so resolving a policy is a single hash lookup that allocates
+ * nothing. The decoders set the issuer on the message context before the security policy is evaluated; messages of
+ * issuers without a policy of their own, and messages without an issuer, get the default policy.
+ */
+public class IssuerSecurityPolicyResolver implements SecurityPolicyResolver {
+
+    private final List<SecurityPolicy> defaultPolicies;
+    private final Map<String, List<SecurityPolicy>> policiesByIssuer;
+
+    public IssuerSecurityPolicyResolver(SecurityPolicy defaultPolicy) {
+        this(defaultPolicy, Collections.<String, SecurityPolicy>emptyMap());
+    }
+
+    /**
+     * @param defaultPolicy    the policy of the issuers that are not in the map
+     * @param policiesByIssuer the policies keyed by the entity ID of their issuer
+     */
+    public IssuerSecurityPolicyResolver(SecurityPolicy defaultPolicy, Map<String, SecurityPolicy> policiesByIssuer) {
+        super();
+        this.defaultPolicies = Collections.singletonList(defaultPolicy);
+        Map<String, List<SecurityPolicy>> policies = new HashMap<String, List<SecurityPolicy>>();
+        for (Map.Entry<String, SecurityPolicy> entry : policiesByIssuer.entrySet()) {
+            policies.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+        }
+        this.policiesByIssuer = Collections.unmodifiableMap(policies);
+    }
+
+    public Iterable<SecurityPolicy> resolve(MessageContext messageContext) throws SecurityException {
+        return policiesOf(messageContext);
+    }
+
+    public SecurityPolicy resolveSingle(MessageContext messageContext) throws SecurityException {
+        return policiesOf(messageContext).get(0);
+    }
+
+    /**
+     * @return the entity IDs of the issuers that have a policy of their own
+     */
+    public Set<String> getIssuers() {
+        return policiesByIssuer.keySet();
+    }
+
+    private List<SecurityPolicy> policiesOf(MessageContext messageContext) {
+        String issuer = messageContext == null ? null : messageContext.getInboundMessageIssuer();
+        List<SecurityPolicy> policies = issuer == null ? null : policiesByIssuer.get(issuer);
+        return policies == null ? defaultPolicies : policies;
+    }
+}
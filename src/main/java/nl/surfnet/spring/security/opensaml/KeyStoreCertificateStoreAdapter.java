@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Derives a {@link RolloverCertificateStore} from the keystore of a plain {@link CertificateStore}: every
+ * certificate entry is the single certificate of the entityID it is stored under. The revision is the identity of
+ * the keystore, so a store that hands out a new keystore is noticed, but one that changes its keystore in place
+ * is not.
+ */
+public class KeyStoreCertificateStoreAdapter implements RolloverCertificateStore {
+
+    private final CertificateStore certificateStore;
+
+    /**
+     * @return the store itself when it already is a {@link RolloverCertificateStore}, an adapter otherwise
+     */
+    public static RolloverCertificateStore adapt(CertificateStore certificateStore) {
+        if (certificateStore == null || certificateStore instanceof RolloverCertificateStore) {
+            return (RolloverCertificateStore) certificateStore;
+        }
+        return new KeyStoreCertificateStoreAdapter(certificateStore);
+    }
+
+    public KeyStoreCertificateStoreAdapter(CertificateStore certificateStore) {
+        super();
+        this.certificateStore = certificateStore;
+    }
+
+    public KeyStore getKeyStore() {
+        return certificateStore.getKeyStore();
+    }
+
+    public Set<String> getEntityIDs() {
+        KeyStore keyStore = getKeyStore();
+        try {
+            Set<String> entityIDs = new HashSet<String>();
+            for (Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+                String alias = aliases.nextElement();
+                if (keyStore.isCertificateEntry(alias)) {
+                    entityIDs.add(alias);
+                }
+            }
+            return entityIDs;
+        } catch (KeyStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<X509Certificate> getCertificates(String entityID) {
+        try {
+            Certificate certificate = getKeyStore().getCertificate(entityID);
+            return certificate instanceof X509Certificate
+                    ? Collections.singletonList((X509Certificate) certificate)
+                    : Collections.<X509Certificate>emptyList();
+        } catch (KeyStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getRevision() {
+        return System.identityHashCode(getKeyStore());
+    }
+}
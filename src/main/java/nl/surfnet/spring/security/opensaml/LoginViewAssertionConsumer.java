@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
+
+/**
+ * Optional extension of {@link AssertionConsumer} for consumers that read the Response through
+ * the {@link SAMLLoginView} the security policy already built, instead of walking it again.
+ * {@link SAMLResponseAuthenticationProvider} calls {@link #consume(SAMLLoginView)} when the consumer
+ * implements this interface, and {@link #consume(org.opensaml.saml2.core.Response)} otherwise.
+ */
+public interface LoginViewAssertionConsumer extends AssertionConsumer {
+
+    UserDetails consume(SAMLLoginView loginView) throws AuthenticationException;
+
+}
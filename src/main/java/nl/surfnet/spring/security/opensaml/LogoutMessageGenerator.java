@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.Configuration;
+import org.opensaml.common.SAMLObject;
+import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+
+import nl.surfnet.spring.security.opensaml.util.IDService;
+import nl.surfnet.spring.security.opensaml.util.TimeService;
+import nl.surfnet.spring.security.opensaml.xml.IssuerGenerator;
+
+
+public class LogoutMessageGenerator {
+
+    private XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+
+    private final TimeService timeService;
+    private final IDService idService;
+    private IssuerGenerator issuerGenerator;
+
+    public LogoutMessageGenerator(String issuingEntityName, TimeService timeService, IDService idService) {
+        super();
+        this.timeService = timeService;
+        this.idService = idService;
+
+        issuerGenerator = new IssuerGenerator(issuingEntityName);
+    }
+
+    public LogoutRequest generateLogoutRequest(String destination, SAMLSessionKey sessionKey) {
+
+        LogoutRequest logoutRequest = build(LogoutRequest.DEFAULT_ELEMENT_NAME);
+
+        logoutRequest.setID(idService.generateID());
+        logoutRequest.setIssueInstant(timeService.getCurrentDateTime());
+        logoutRequest.setDestination(destination);
+        logoutRequest.setIssuer(issuerGenerator.generateIssuer());
+
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setValue(sessionKey.getNameID());
+        nameID.setFormat(sessionKey.getNameIDFormat());
+        logoutRequest.setNameID(nameID);
+
+        if (sessionKey.getSessionIndex() != null) {
+            org.opensaml.saml2.core.SessionIndex sessionIndex = build(org.opensaml.saml2.core.SessionIndex.DEFAULT_ELEMENT_NAME);
+            sessionIndex.setSessionIndex(sessionKey.getSessionIndex());
+            logoutRequest.getSessionIndexes().add(sessionIndex);
+        }
+
+        return logoutRequest;
+    }
+
+    public LogoutResponse generateLogoutResponse(String destination, String inResponseTo, String statusCodeValue) {
+
+        LogoutResponse logoutResponse = build(LogoutResponse.DEFAULT_ELEMENT_NAME);
+
+        logoutResponse.setID(idService.generateID());
+        logoutResponse.setIssueInstant(timeService.getCurrentDateTime());
+        logoutResponse.setDestination(destination);
+        logoutResponse.setInResponseTo(inResponseTo);
+        logoutResponse.setIssuer(issuerGenerator.generateIssuer());
+
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(statusCodeValue);
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(statusCode);
+        logoutResponse.setStatus(status);
+
+        return logoutResponse;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends SAMLObject> T build(QName elementName) {
+        return ((SAMLObjectBuilder<T>) builderFactory.getBuilder(elementName)).buildObject();
+    }
+
+}
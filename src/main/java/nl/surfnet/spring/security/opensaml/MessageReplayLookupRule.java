@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.util.ConcurrentReplayCache;
+
+/**
+ * Rejects messages of which the ID has already been recorded by the {@link MessageReplayRecordRule}, without
+ * recording anything itself. Being a cache lookup it runs before signature verification, so replayed messages
+ * never reach the crypto code.
+ */
+public class MessageReplayLookupRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(MessageReplayLookupRule.class);
+
+    private final ConcurrentReplayCache replayCache;
+
+    public MessageReplayLookupRule(ConcurrentReplayCache replayCache) {
+        super();
+        this.replayCache = replayCache;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.LOOKUP;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        if (!(messageContext instanceof SAMLMessageContext)) {
+            return;
+        }
+        SAMLMessageContext samlMessageContext = (SAMLMessageContext) messageContext;
+        String issuer = samlMessageContext.getInboundMessageIssuer();
+        String messageId = samlMessageContext.getInboundSAMLMessageId();
+        if (StringUtils.isBlank(messageId)) {
+            throw new SecurityPolicyException("Message contained no ID, replay check not possible");
+        }
+        if (replayCache.isKnown(issuer, messageId)) {
+            log.warn("Replay detected for message '{}' from issuer '{}'", messageId, issuer);
+            throw new SecurityPolicyException("Rejecting replayed message ID '" + messageId + "' from issuer " + issuer);
+        }
+    }
+}
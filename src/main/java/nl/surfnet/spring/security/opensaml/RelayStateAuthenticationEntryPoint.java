@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.authentication.LoginUrlAuthenticationEntryPoint;
+import org.springframework.security.web.util.UrlUtils;
+
+/**
+ * Sends users to the login page with the URL they wanted to visit in the <code>returnTo</code> parameter, which the
+ * <code>AuthnRequestController</code> puts in the RelayState. Used with the {@link RelayStateRequestCache}, so that
+ * no HTTP session is needed to return users to where they came from. Only GET requests are returned to.
+ */
+public class RelayStateAuthenticationEntryPoint extends LoginUrlAuthenticationEntryPoint {
+
+    public static final String RETURN_TO_PARAM_NAME = "returnTo";
+
+    public RelayStateAuthenticationEntryPoint(String loginFormUrl) {
+        super(loginFormUrl);
+    }
+
+    @Override
+    protected String determineUrlToUseForThisRequest(HttpServletRequest request, HttpServletResponse response,
+                                                     AuthenticationException exception) {
+        String loginUrl = super.determineUrlToUseForThisRequest(request, response, exception);
+        if (!"GET".equals(request.getMethod())) {
+            return loginUrl;
+        }
+        try {
+            return loginUrl + (loginUrl.indexOf('?') < 0 ? '?' : '&') + RETURN_TO_PARAM_NAME + "="
+                    + URLEncoder.encode(UrlUtils.buildRequestUrl(request), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+}
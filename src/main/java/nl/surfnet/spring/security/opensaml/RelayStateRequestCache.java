@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.web.savedrequest.RequestCache;
+import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.security.web.util.UrlUtils;
+
+import nl.surfnet.spring.security.opensaml.crypt.RelayStateCodec;
+
+/**
+ * A {@link RequestCache} that keeps no state on the server: the URL to return to after the login travels in the
+ * RelayState of the AuthnRequest and comes back with the SAML Response. The URL is put in the login URL by the
+ * {@link RelayStateAuthenticationEntryPoint} and in the RelayState by the <code>AuthnRequestController</code>.
+ * <p/>
+ * Saving a request does nothing, so no HTTP session is created for anonymous visitors of protected URLs. Only the
+ * URL of a request is carried, the request is always retried as a GET.
+ */
+public class RelayStateRequestCache implements RequestCache {
+
+    private final static Logger log = LoggerFactory.getLogger(RelayStateRequestCache.class);
+
+    public static final String RELAY_STATE_PARAM_NAME = "RelayState";
+
+    private final RelayStateCodec relayStateCodec;
+
+    public RelayStateRequestCache(RelayStateCodec relayStateCodec) {
+        super();
+        this.relayStateCodec = relayStateCodec;
+    }
+
+    public void saveRequest(HttpServletRequest request, HttpServletResponse response) {
+    }
+
+    /**
+     * @return the request to return to, from the RelayState of the SAML Response, or <code>null</code> if it has no
+     *         RelayState or one that was not created by this service provider
+     */
+    public SavedRequest getRequest(HttpServletRequest request, HttpServletResponse response) {
+        String relayState = request.getParameter(RELAY_STATE_PARAM_NAME);
+        if (relayState == null) {
+            return null;
+        }
+        String url = relayStateCodec.decode(relayState);
+        if (url == null) {
+            log.warn("Ignoring RelayState that was not issued by this service provider: {}", relayState);
+            return null;
+        }
+        int query = url.indexOf('?');
+        String redirectUrl = UrlUtils.buildFullRequestUrl(request.getScheme(), request.getServerName(),
+                request.getServerPort(), request.getContextPath() + (query < 0 ? url : url.substring(0, query)),
+                query < 0 ? null : url.substring(query + 1));
+        return new RelayStateSavedRequest(redirectUrl);
+    }
+
+    public HttpServletRequest getMatchingRequest(HttpServletRequest request, HttpServletResponse response) {
+        return null;
+    }
+
+    public void removeRequest(HttpServletRequest request, HttpServletResponse response) {
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+
+import org.springframework.security.web.savedrequest.SavedRequest;
+
+/**
+ * The URL of a request carried in a RelayState; the rest of the request is not kept.
+ */
+public class RelayStateSavedRequest implements SavedRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String redirectUrl;
+
+    public RelayStateSavedRequest(String redirectUrl) {
+        super();
+        this.redirectUrl = redirectUrl;
+    }
+
+    public String getRedirectUrl() {
+        return redirectUrl;
+    }
+
+    public List<Cookie> getCookies() {
+        return Collections.emptyList();
+    }
+
+    public String getMethod() {
+        return "GET";
+    }
+
+    public List<String> getHeaderValues(String name) {
+        return Collections.emptyList();
+    }
+
+    public Collection<String> getHeaderNames() {
+        return Collections.emptyList();
+    }
+
+    public List<Locale> getLocales() {
+        return Collections.emptyList();
+    }
+
+    public String[] getParameterValues(String name) {
+        return null;
+    }
+
+    public Map<String, String[]> getParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String toString() {
+        return "RelayStateSavedRequest[" + redirectUrl + "]";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optional extension of {@link CertificateStore} for stores that can hold several certificates per identity
+ * provider, as during a key rollover, and that can change at runtime. Components that receive a plain
+ * {@link CertificateStore} derive this view from its keystore with {@link KeyStoreCertificateStoreAdapter}.
+ */
+public interface RolloverCertificateStore extends CertificateStore {
+
+    /**
+     * @return the entityIDs of the identity providers that have certificates in the store
+     */
+    Set<String> getEntityIDs();
+
+    /**
+     * @return all certificates of the identity provider, more than one while it rolls over its key, or an empty
+     *         list if the entityID is not in the store
+     */
+    List<X509Certificate> getCertificates(String entityID);
+
+    /**
+     * @return a number that changes whenever the certificates in the store change
+     */
+    long getRevision();
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+/**
+ * Cost class of a security policy rule. The {@link SecurityPolicyDelegate} evaluates rules in the order of
+ * these constants, so cheap checks reject a message before the expensive ones run.
+ */
+public enum RuleCost {
+
+    /**
+     * Checks on the shape of the message that need nothing but the message itself.
+     */
+    STRUCTURAL,
+
+    /**
+     * Comparisons against the clock.
+     */
+    TEMPORAL,
+
+    /**
+     * Read-only lookups in in-memory caches.
+     */
+    LOOKUP,
+
+    /**
+     * Signature verification and other public key operations.
+     */
+    CRYPTOGRAPHIC,
+
+    /**
+     * Rules that record state and therefore must only run once all other rules have passed.
+     */
+    COMMIT
+
+}
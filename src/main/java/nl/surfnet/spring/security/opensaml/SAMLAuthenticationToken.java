@@ -27,6 +27,8 @@ public class SAMLAuthenticationToken extends AbstractAuthenticationToken {
 
     private final Object principal;
     private final Object credentials;
+    private final SAMLLoginView loginView;
+    private final SAMLSessionKey sessionKey;
 
     /**
      * This constructor can be safely used by any code that wishes to create a
@@ -40,10 +42,28 @@ public class SAMLAuthenticationToken extends AbstractAuthenticationToken {
         super(authorities);
         this.principal = response;
         this.credentials = credentials;
+        this.loginView = null;
+        this.sessionKey = null;
         setAuthenticated(false);
 
     }
 
+    /**
+     * Creates an untrusted token for a Response of which the {@link SAMLLoginView} has already been extracted.
+     *
+     * @param loginView
+     * @param credentials
+     * @param authorities
+     */
+    public SAMLAuthenticationToken(SAMLLoginView loginView, String credentials, Collection<? extends GrantedAuthority> authorities) {
+        super(authorities);
+        this.principal = loginView.getResponse();
+        this.credentials = credentials;
+        this.loginView = loginView;
+        this.sessionKey = null;
+        setAuthenticated(false);
+    }
+
     /**
      * This constructor should only be used by <code>AuthenticationManager</code> or <code>AuthenticationProvider</code>
      * implementations that are satisfied with producing a trusted (i.e. {@link #isAuthenticated()} = <code>true</code>)
@@ -54,9 +74,23 @@ public class SAMLAuthenticationToken extends AbstractAuthenticationToken {
      * @param authorities
      */
     public SAMLAuthenticationToken(UserDetails user, String credentials, Collection<? extends GrantedAuthority> authorities) {
+        this(user, credentials, authorities, null);
+    }
+
+    /**
+     * Creates a trusted token that remembers the session of the user at the identity provider, for Single Logout.
+     *
+     * @param user
+     * @param credentials
+     * @param authorities
+     * @param sessionKey
+     */
+    public SAMLAuthenticationToken(UserDetails user, String credentials, Collection<? extends GrantedAuthority> authorities, SAMLSessionKey sessionKey) {
         super(authorities);
         this.principal = user;
         this.credentials = credentials;
+        this.loginView = null;
+        this.sessionKey = sessionKey;
         super.setAuthenticated(true); // must use super, as we override
     }
 
@@ -68,6 +102,20 @@ public class SAMLAuthenticationToken extends AbstractAuthenticationToken {
         return principal;
     }
 
+    /**
+     * @return the extracted view of the Response, or <code>null</code> if the token does not carry one
+     */
+    public SAMLLoginView getLoginView() {
+        return loginView;
+    }
+
+    /**
+     * @return the session of the user at the identity provider, or <code>null</code> if it is not known
+     */
+    public SAMLSessionKey getSessionKey() {
+        return sessionKey;
+    }
+
     /* taken from Spring Security's UsernamePasswordAuthenticationToken implementation
       * @see org.springframework.security.authentication.AbstractAuthenticationToken#setAuthenticated(boolean)
       */
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.saml2.core.Response;
+
+/**
+ * Message context that carries the {@link SAMLLoginView} of the inbound Response. The view is extracted
+ * the first time it is asked for, which is after the decoder has unmarshalled the message.
+ */
+public class SAMLLoginMessageContext extends BasicSAMLMessageContext {
+
+    private SAMLLoginView loginView;
+
+    public SAMLLoginView getLoginView() {
+        if (loginView == null && getInboundSAMLMessage() instanceof Response) {
+            loginView = new SAMLLoginView((Response) getInboundSAMLMessage());
+        }
+        return loginView;
+    }
+
+    /**
+     * Replaces the view, for instance by one that includes the decrypted assertions.
+     */
+    public void setLoginView(SAMLLoginView loginView) {
+        this.loginView = loginView;
+    }
+
+}
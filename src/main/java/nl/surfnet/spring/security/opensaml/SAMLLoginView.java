@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.NameID;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Status;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.ws.message.MessageContext;
+
+import nl.surfnet.spring.security.opensaml.xml.AttributeIndex;
+
+/**
+ * Immutable view on the parts of a SAML Response that are needed to log a user in.
+ * <p/>
+ * The view is extracted in a single walk over the Response right after it has been decoded, and is
+ * carried along in the {@link SAMLLoginMessageContext}. The security policy rules and the
+ * {@link AssertionConsumer} read from it instead of navigating the XMLObject tree again.
+ * <p/>
+ * Assertions that were decrypted from the EncryptedAssertions of the Response follow the plain assertions.
+ */
+public class SAMLLoginView {
+
+    private final Response response;
+    private final String issuer;
+    private final String statusCode;
+    private final String subStatusCode;
+    private final String statusMessage;
+    private final List<Assertion> assertions;
+    private final Assertion assertion;
+    private final AuthnStatement authnStatement;
+    private final AttributeIndex attributeIndex;
+    private final String nameID;
+    private final String nameIDFormat;
+    private final boolean allAssertionsSigned;
+    private final List<SignableSAMLObject> signedObjects;
+
+    public SAMLLoginView(Response response) {
+        this(response, Collections.<Assertion>emptyList());
+    }
+
+    /**
+     * @param decryptedAssertions the assertions decrypted from the EncryptedAssertions of the Response
+     */
+    public SAMLLoginView(Response response, List<Assertion> decryptedAssertions) {
+        super();
+        this.response = response;
+        this.issuer = response.getIssuer() == null ? null : response.getIssuer().getValue();
+
+        Status status = response.getStatus();
+        StatusCode topLevelStatusCode = status == null ? null : status.getStatusCode();
+        this.statusCode = topLevelStatusCode == null ? null : StringUtils.trim(topLevelStatusCode.getValue());
+        this.subStatusCode = topLevelStatusCode == null || topLevelStatusCode.getStatusCode() == null
+                ? null : topLevelStatusCode.getStatusCode().getValue();
+        this.statusMessage = status == null || status.getStatusMessage() == null
+                ? null : status.getStatusMessage().getMessage();
+
+        List<SignableSAMLObject> signed = new ArrayList<SignableSAMLObject>();
+        if (response.isSigned()) {
+            signed.add(response);
+        }
+        List<Assertion> allAssertions = new ArrayList<Assertion>(response.getAssertions());
+        allAssertions.addAll(decryptedAssertions);
+        boolean allSigned = true;
+        for (Assertion candidate : allAssertions) {
+            if (candidate.isSigned()) {
+                signed.add(candidate);
+            } else {
+                allSigned = false;
+            }
+        }
+        this.assertions = Collections.unmodifiableList(allAssertions);
+        this.allAssertionsSigned = allSigned;
+        this.signedObjects = Collections.unmodifiableList(signed);
+
+        this.assertion = assertions.isEmpty() ? null : assertions.get(0);
+        if (assertion != null) {
+            this.authnStatement = assertion.getAuthnStatements().isEmpty() ? null : assertion.getAuthnStatements().get(0);
+            this.attributeIndex = assertion.getAttributeStatements().isEmpty() ? null : new AttributeIndex(assertion);
+            NameID subjectNameID = assertion.getSubject() == null ? null : assertion.getSubject().getNameID();
+            this.nameID = subjectNameID == null ? null : subjectNameID.getValue();
+            this.nameIDFormat = subjectNameID == null ? null : subjectNameID.getFormat();
+        } else {
+            this.authnStatement = null;
+            this.attributeIndex = null;
+            this.nameID = null;
+            this.nameIDFormat = null;
+        }
+    }
+
+    /**
+     * @return the view carried by the message context, a new view when the context does not carry one,
+     *         or <code>null</code> when the inbound message is not a Response
+     */
+    public static SAMLLoginView of(MessageContext messageContext) {
+        if (messageContext instanceof SAMLLoginMessageContext) {
+            return ((SAMLLoginMessageContext) messageContext).getLoginView();
+        }
+        if (messageContext.getInboundMessage() instanceof Response) {
+            return new SAMLLoginView((Response) messageContext.getInboundMessage());
+        }
+        return null;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the value of the Issuer of the Response, or <code>null</code> if it has none
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getStatusCode() {
+        return statusCode;
+    }
+
+    public String getSubStatusCode() {
+        return subStatusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public boolean isSuccess() {
+        return StatusCode.SUCCESS_URI.equals(statusCode);
+    }
+
+    /**
+     * @return the plain and the decrypted assertions
+     */
+    public List<Assertion> getAssertions() {
+        return assertions;
+    }
+
+    /**
+     * @return the first assertion of the Response, or <code>null</code> if it has none
+     */
+    public Assertion getAssertion() {
+        return assertion;
+    }
+
+    /**
+     * @return the first AuthnStatement of the first assertion, or <code>null</code> if there is none
+     */
+    public AuthnStatement getAuthnStatement() {
+        return authnStatement;
+    }
+
+    /**
+     * @return the attributes of the first assertion, or <code>null</code> if it has no AttributeStatement
+     */
+    public AttributeIndex getAttributeIndex() {
+        return attributeIndex;
+    }
+
+    public String getNameID() {
+        return nameID;
+    }
+
+    public String getNameIDFormat() {
+        return nameIDFormat;
+    }
+
+    /**
+     * @return the SessionIndex of the first AuthnStatement, or <code>null</code> if it has none
+     */
+    public String getSessionIndex() {
+        return authnStatement == null ? null : authnStatement.getSessionIndex();
+    }
+
+    /**
+     * @return the Response (when signed) followed by every signed assertion
+     */
+    public List<SignableSAMLObject> getSignedObjects() {
+        return signedObjects;
+    }
+
+    /**
+     * @return whether the Response itself is signed, or all assertions in it are
+     */
+    public boolean isSignatureCovered() {
+        return response.isSigned() || (allAssertionsSigned && !assertions.isEmpty());
+    }
+
+}
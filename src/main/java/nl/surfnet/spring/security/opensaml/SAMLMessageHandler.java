@@ -24,14 +24,39 @@ import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.xml.security.SecurityException;
 
+/**
+ * Sends and receives SAML messages of the service provider.
+ * <p/>
+ * The servlet methods wrap the request or response in an OpenSAML transport and call the transport methods, which
+ * do not depend on the servlet API; a front end that is not servlet based can call those directly with transports
+ * of its own.
+ */
 public interface SAMLMessageHandler {
 
     public void sendSAMLMessage(SignableSAMLObject samlMessage, Endpoint endpoint, HttpServletResponse response) throws MessageEncodingException;
 
+    /**
+     * @param relayState the RelayState sent along with the message, or <code>null</code>
+     */
+    public void sendSAMLMessage(SignableSAMLObject samlMessage, Endpoint endpoint, HTTPOutTransport outTransport, String relayState) throws MessageEncodingException;
+
     public SAMLMessageContext extractSAMLMessageContext(HttpServletRequest request) throws MessageDecodingException, SecurityException;
 
+    /**
+     * @param inTransport the inbound transport; when the Response has a Destination, it has to be a
+     *                    {@link HTTPRequestURLTransport} or an <code>HttpServletRequestAdapter</code>
+     */
+    public SAMLMessageContext extractSAMLMessageContext(HTTPInTransport inTransport) throws MessageDecodingException, SecurityException;
+
+    /**
+     * @return the encoded SAML request or response, or the SAML artifact, of the request
+     */
     public String extractSAMLMessage(HttpServletRequest request);
 
+    public String extractSAMLMessage(HTTPInTransport inTransport);
+
 }
@@ -27,28 +27,41 @@ import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.binding.decoding.SAMLMessageDecoder;
 import org.opensaml.common.binding.encoding.SAMLMessageEncoder;
 import org.opensaml.saml2.binding.encoding.HTTPPostSimpleSignEncoder;
+import org.opensaml.saml2.binding.encoding.HTTPRedirectDeflateEncoder;
 import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.security.SecurityPolicyResolver;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
 import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
 import org.opensaml.xml.security.SecurityException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 
+import nl.surfnet.spring.security.opensaml.crypt.MessageSigner;
+
 public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingBean {
 
     private static final String SAML_REQUEST_POST_PARAM_NAME = "SAMLRequest";
     private static final String SAML_RESPONSE_POST_PARAM_NAME = "SAMLResponse";
+    private static final String SAML_ARTIFACT_PARAM_NAME = HTTPArtifactResolvingDecoder.SAML_ARTIFACT_PARAM_NAME;
+    private static final String POST_SIMPLESIGN_TEMPLATE = "/templates/saml2-post-simplesign-binding.vm";
+
+    public static final String BINDING_POST = "POST";
+    public static final String BINDING_REDIRECT = "Redirect";
 
     private VelocityEngine velocityEngine;
 
     private final SAMLMessageDecoder decoder;
+    private SAMLMessageDecoder artifactDecoder;
     private SAMLMessageEncoder encoder;
     private final SecurityPolicyResolver resolver;
 
     private String entityId;
+    private MessageSigner messageSigner;
+    private String binding = BINDING_POST;
 
     public SAMLMessageHandlerImpl(SAMLMessageDecoder decoder, SecurityPolicyResolver resolver) {
         super();
@@ -62,8 +75,39 @@ public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingB
         this.velocityEngine = velocityEngine;
     }
 
+    /**
+     * @param messageSigner the signer of outbound messages, messages are not signed when it is not set
+     */
+    public void setMessageSigner(MessageSigner messageSigner) {
+        this.messageSigner = messageSigner;
+    }
+
+    /**
+     * @param binding the binding of outbound messages, either {@link #BINDING_POST} (SimpleSign) or
+     *                {@link #BINDING_REDIRECT}
+     */
+    public void setBinding(String binding) {
+        this.binding = binding;
+    }
+
     public void afterPropertiesSet() throws Exception {
-        encoder = new HTTPPostSimpleSignEncoder(velocityEngine, "/templates/saml2-post-simplesign-binding.vm", true);
+        if (BINDING_REDIRECT.equals(binding)) {
+            encoder = messageSigner == null ? new HTTPRedirectDeflateEncoder() : new SigningHTTPRedirectDeflateEncoder(messageSigner);
+        } else if (BINDING_POST.equals(binding)) {
+            encoder = messageSigner == null
+                    ? new HTTPPostSimpleSignEncoder(velocityEngine, POST_SIMPLESIGN_TEMPLATE, true)
+                    : new SigningHTTPPostSimpleSignEncoder(velocityEngine, POST_SIMPLESIGN_TEMPLATE, messageSigner);
+        } else {
+            throw new IllegalArgumentException("Unsupported binding " + binding);
+        }
+    }
+
+    /**
+     * @param artifactDecoder the decoder of requests that carry a SAML artifact instead of a message, artifacts are
+     *                        not accepted when it is not set
+     */
+    public void setArtifactDecoder(SAMLMessageDecoder artifactDecoder) {
+        this.artifactDecoder = artifactDecoder;
     }
 
     @Required
@@ -72,13 +116,21 @@ public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingB
     }
 
     public SAMLMessageContext extractSAMLMessageContext(HttpServletRequest request) throws MessageDecodingException, SecurityException {
+        return extractSAMLMessageContext(new HttpServletRequestAdapter(request));
+    }
 
-        BasicSAMLMessageContext messageContext = new BasicSAMLMessageContext();
+    public SAMLMessageContext extractSAMLMessageContext(HTTPInTransport inTransport) throws MessageDecodingException, SecurityException {
+
+        SAMLLoginMessageContext messageContext = new SAMLLoginMessageContext();
 
-        messageContext.setInboundMessageTransport(new HttpServletRequestAdapter(request));
+        messageContext.setInboundMessageTransport(inTransport);
         messageContext.setSecurityPolicyResolver(resolver);
 
-        decoder.decode(messageContext);
+        if (artifactDecoder != null && StringUtils.isNotBlank(inTransport.getParameterValue(SAML_ARTIFACT_PARAM_NAME))) {
+            artifactDecoder.decode(messageContext);
+        } else {
+            decoder.decode(messageContext);
+        }
 
         return messageContext;
 
@@ -87,8 +139,13 @@ public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingB
     public void sendSAMLMessage(SignableSAMLObject samlMessage,
                                 Endpoint endpoint,
                                 HttpServletResponse response) throws MessageEncodingException {
+        sendSAMLMessage(samlMessage, endpoint, new HttpServletResponseAdapter(response, false), null);
+    }
 
-        HttpServletResponseAdapter outTransport = new HttpServletResponseAdapter(response, false);
+    public void sendSAMLMessage(SignableSAMLObject samlMessage,
+                                Endpoint endpoint,
+                                HTTPOutTransport outTransport,
+                                String relayState) throws MessageEncodingException {
 
         BasicSAMLMessageContext messageContext = new BasicSAMLMessageContext();
 
@@ -96,6 +153,10 @@ public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingB
         messageContext.setPeerEntityEndpoint(endpoint);
         messageContext.setOutboundSAMLMessage(samlMessage);
         messageContext.setOutboundMessageIssuer(entityId);
+        messageContext.setRelayState(relayState);
+        if (messageSigner != null) {
+            messageContext.setOutboundSAMLMessageSigningCredential(messageSigner.getCredential());
+        }
 
         encoder.encode(messageContext);
 
@@ -104,8 +165,20 @@ public class SAMLMessageHandlerImpl implements SAMLMessageHandler, InitializingB
     public String extractSAMLMessage(HttpServletRequest request) {
         if (StringUtils.isNotBlank(request.getParameter(SAML_REQUEST_POST_PARAM_NAME))) {
             return request.getParameter(SAML_REQUEST_POST_PARAM_NAME);
-        } else {
+        } else if (StringUtils.isNotBlank(request.getParameter(SAML_RESPONSE_POST_PARAM_NAME))) {
             return request.getParameter(SAML_RESPONSE_POST_PARAM_NAME);
+        } else {
+            return request.getParameter(SAML_ARTIFACT_PARAM_NAME);
+        }
+    }
+
+    public String extractSAMLMessage(HTTPInTransport inTransport) {
+        if (StringUtils.isNotBlank(inTransport.getParameterValue(SAML_REQUEST_POST_PARAM_NAME))) {
+            return inTransport.getParameterValue(SAML_REQUEST_POST_PARAM_NAME);
+        } else if (StringUtils.isNotBlank(inTransport.getParameterValue(SAML_RESPONSE_POST_PARAM_NAME))) {
+            return inTransport.getParameterValue(SAML_RESPONSE_POST_PARAM_NAME);
+        } else {
+            return inTransport.getParameterValue(SAML_ARTIFACT_PARAM_NAME);
         }
     }
 
@@ -17,21 +17,37 @@
 package nl.surfnet.spring.security.opensaml;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.transport.http.HTTPInTransport;
+import org.opensaml.ws.transport.http.HttpServletRequestAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.security.web.authentication.AbstractAuthenticationProcessingFilter;
 
+import nl.surfnet.spring.security.opensaml.crypt.JCAInstancePool;
+import nl.surfnet.spring.security.opensaml.util.ConcurrencyLimiter;
+import nl.surfnet.spring.security.opensaml.util.SingleFlight;
+
 public class SAMLResponseAuthenticationProcessingFilter extends
         AbstractAuthenticationProcessingFilter {
 
@@ -40,26 +56,202 @@ public class SAMLResponseAuthenticationProcessingFilter extends
 
     private SAMLMessageHandler samlMessageHandler;
 
+    private boolean releaseDOM = true;
+
+    private Executor authenticationExecutor;
+
+    private long asyncTimeout = 30000L;
+
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    private int retryAfter = 1;
+
+    private SingleFlight<Authentication> singleFlight;
+
+    private SessionIndex sessionIndex;
+
+    private final JCAInstancePool jcaInstancePool = new JCAInstancePool();
+
     @Required
     public void setSAMLMessageHandler(SAMLMessageHandler samlMessageHandler) {
         this.samlMessageHandler = samlMessageHandler;
     }
 
 
+    /**
+     * Whether the cached DOM of the Response is released once the security policy (and with it the signature
+     * verification) has run. Only the unmarshalled object tree and the Attribute elements of the
+     * {@link SAMLLoginView#getAttributeIndex() attribute index} are kept for the rest of the login, so provisioners
+     * have to read lazily unmarshalled attribute values through that index.
+     */
+    public void setReleaseDOM(boolean releaseDOM) {
+        this.releaseDOM = releaseDOM;
+    }
+
+    /**
+     * Runs the authentication of SAML Responses on the executor, so that the request threads of the container are
+     * not held by signature verification and provisioning. Requires a Servlet 3.0 container and a filter mapping
+     * that supports asynchronous requests and includes the ASYNC dispatcher; requests that do not support
+     * asynchronous processing are authenticated on the request thread. A bounded executor should be used: when it
+     * rejects a Response, a 503 is sent.
+     */
+    public void setAuthenticationExecutor(Executor authenticationExecutor) {
+        this.authenticationExecutor = authenticationExecutor;
+    }
+
+    /**
+     * @param asyncTimeout the time in milliseconds an asynchronous authentication may take, including the time it
+     *                     waits for the executor, before a 503 is sent
+     */
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * Limits the number of SAML Responses that are decoded and verified at the same time. Responses that do not
+     * get a permit are answered with a 503 right away, without being parsed.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * @param retryAfter the Retry-After in seconds of the 503 sent when the concurrency limit is reached
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Lets a SAML Response that is submitted again by the same browser session, while the first submission is
+     * still being authenticated, share the outcome of the first submission instead of being verified again and
+     * rejected as a replay.
+     */
+    public void setSingleFlight(SingleFlight<Authentication> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * Indexes the session of every user that logs in, so that a LogoutRequest of the identity provider can
+     * invalidate it.
+     */
+    public void setSessionIndex(SessionIndex sessionIndex) {
+        this.sessionIndex = sessionIndex;
+    }
+
     public SAMLResponseAuthenticationProcessingFilter(String defaultFilterProcessesUrl) {
         super(defaultFilterProcessesUrl);
     }
 
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        if (request.getAttribute(AsyncAuthentication.RESULT_ATTRIBUTE) != null
+                || (authenticationExecutor == null && concurrencyLimiter == null)
+                || !requiresAuthentication(request, response)) {
+            super.doFilter(req, res, chain);
+            return;
+        }
+
+        ConcurrencyLimiter.Permit permit = null;
+        if (concurrencyLimiter != null) {
+            try {
+                permit = concurrencyLimiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (permit == null) {
+                logger.warn("Concurrency limit of SAML authentications reached, rejecting SAML Response");
+                response.setHeader("Retry-After", String.valueOf(retryAfter));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+
+        boolean async = false;
+        try {
+            async = authenticationExecutor != null
+                    && AsyncAuthentication.start(this, request, response, authenticationExecutor, asyncTimeout, permit);
+            if (!async) {
+                super.doFilter(req, res, chain);
+            }
+        } finally {
+            if (!async && permit != null) {
+                permit.release();
+            }
+        }
+    }
+
     @Override
     public Authentication attemptAuthentication(HttpServletRequest request, HttpServletResponse response)
             throws AuthenticationException, IOException, ServletException {
+        Object asyncResult = request.getAttribute(AsyncAuthentication.RESULT_ATTRIBUTE);
+        if (asyncResult != null) {
+            request.removeAttribute(AsyncAuthentication.RESULT_ATTRIBUTE);
+            return AsyncAuthentication.resultOf(asyncResult);
+        }
+        return authenticate(new HttpServletRequestAdapter(request), request.getRequestedSessionId(), buildDetails(request));
+    }
+
+    /**
+     * Indexes the session once the session strategy has run, as session fixation protection replaces the session
+     * the Response was posted in.
+     */
+    @Override
+    protected void successfulAuthentication(HttpServletRequest request, HttpServletResponse response,
+                                            FilterChain chain, Authentication authResult)
+            throws IOException, ServletException {
+        if (sessionIndex != null && authResult instanceof SAMLAuthenticationToken
+                && ((SAMLAuthenticationToken) authResult).getSessionKey() != null) {
+            sessionIndex.bind(request.getSession(), ((SAMLAuthenticationToken) authResult).getSessionKey());
+        }
+        super.successfulAuthentication(request, response, chain, authResult);
+    }
+
+    /**
+     * Decodes and verifies the SAML Response and authenticates it, on the request thread or on the authentication
+     * executor. Only the transport is read, so the executor never touches the request itself.
+     *
+     * @param requestedSessionId the session ID the browser sent, or <code>null</code>
+     * @param details            the details of the authentication, built from the request
+     */
+    Authentication authenticate(final HTTPInTransport inTransport, final String requestedSessionId, final Object details)
+            throws AuthenticationException, IOException, ServletException {
+        String samlResponse = samlMessageHandler.extractSAMLMessage(inTransport);
+        String client = clientOf(requestedSessionId, inTransport);
+        if (singleFlight == null || samlResponse == null || client == null) {
+            return authenticateResponse(inTransport, details);
+        }
+        try {
+            return singleFlight.execute(fingerprint(samlResponse), client, new Callable<Authentication>() {
+                public Authentication call() throws Exception {
+                    return authenticateResponse(inTransport, details);
+                }
+            });
+        } catch (AuthenticationException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (ServletException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+
+    private Authentication authenticateResponse(HTTPInTransport inTransport, Object details)
+            throws AuthenticationException, IOException, ServletException {
 
         logger.debug("Attempting authentication.");
 
         SAMLMessageContext messageContext = null;
 
         try {
-            messageContext = samlMessageHandler.extractSAMLMessageContext(request);
+            messageContext = samlMessageHandler.extractSAMLMessageContext(inTransport);
         } catch (MessageDecodingException me) {
             throw new ServiceProviderAuthenticationException("Could not decode SAML Response", me);
         } catch (org.opensaml.xml.security.SecurityException se) {
@@ -72,17 +264,68 @@ public class SAMLResponseAuthenticationProcessingFilter extends
             throw new ServiceProviderAuthenticationException("SAML Message was not a Response.");
         }
 
-        String credentials = samlMessageHandler.extractSAMLMessage(request);
+        if (releaseDOM) {
+            releaseDOM(messageContext);
+        }
+
+        String credentials = samlMessageHandler.extractSAMLMessage(inTransport);
 
-        SAMLAuthenticationToken authRequest = new SAMLAuthenticationToken((Response) messageContext.getInboundSAMLMessage(), credentials, null);
+        SAMLAuthenticationToken authRequest;
+        if (messageContext instanceof SAMLLoginMessageContext) {
+            authRequest = new SAMLAuthenticationToken(((SAMLLoginMessageContext) messageContext).getLoginView(), credentials, null);
+        } else {
+            authRequest = new SAMLAuthenticationToken((Response) messageContext.getInboundSAMLMessage(), credentials, null);
+        }
 
-        authRequest.setDetails(authenticationDetailsSource.buildDetails(request));
+        authRequest.setDetails(details);
         logger.debug("authRequest.getDetails(): {}", authRequest.getDetails());
 
-        final Authentication authenticate = this.getAuthenticationManager().authenticate(authRequest);
+        return this.getAuthenticationManager().authenticate(authRequest);
+
+    }
+
+    Object buildDetails(HttpServletRequest request) {
+        return authenticationDetailsSource.buildDetails(request);
+    }
 
-        return authenticate;
+    private String fingerprint(String samlResponse) throws ServletException {
+        try {
+            MessageDigest sha256 = jcaInstancePool.getMessageDigest("SHA-256");
+            return new String(Hex.encode(sha256.digest(Utf8.encode(samlResponse))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ServletException("SHA-256 is not available", e);
+        }
+    }
 
+    /**
+     * Submissions are only coalesced for the same browser, so a captured Response posted by someone else is still
+     * rejected as a replay. Without a session cookie the browser cannot be told apart from others behind the same
+     * address, so such submissions are never coalesced.
+     *
+     * @return the browser that submitted the Response, or <code>null</code> if the request has no session ID
+     */
+    private String clientOf(String requestedSessionId, HTTPInTransport inTransport) {
+        return requestedSessionId == null ? null : requestedSessionId + "|" + inTransport.getPeerAddress();
+    }
+
+    private void releaseDOM(SAMLMessageContext messageContext) {
+        if (messageContext instanceof SAMLLoginMessageContext) {
+            SAMLLoginView loginView = ((SAMLLoginMessageContext) messageContext).getLoginView();
+            if (loginView.getAttributeIndex() != null) {
+                loginView.getAttributeIndex().detach();
+            }
+            // decrypted assertions live in documents of their own
+            for (Assertion assertion : loginView.getAssertions()) {
+                if (assertion.getParent() == null) {
+                    assertion.releaseChildrenDOM(true);
+                    assertion.releaseDOM();
+                }
+            }
+        }
+        Response response = (Response) messageContext.getInboundSAMLMessage();
+        response.releaseChildrenDOM(true);
+        response.releaseDOM();
+        logger.debug("Released DOM of Response {}", response.getID());
     }
 
 }
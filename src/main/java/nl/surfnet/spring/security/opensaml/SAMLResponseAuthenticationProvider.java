@@ -41,9 +41,20 @@ public class SAMLResponseAuthenticationProvider implements AuthenticationProvide
 
         logger.debug("attempting to authenticate: {}", submitted);
 
-        UserDetails user = assertionConsumer.consume((Response) submitted.getPrincipal());
-
-        SAMLAuthenticationToken authenticated = new SAMLAuthenticationToken(user, (String) submitted.getCredentials(), user.getAuthorities());
+        SAMLLoginView loginView;
+        if (submitted instanceof SAMLAuthenticationToken && ((SAMLAuthenticationToken) submitted).getLoginView() != null) {
+            loginView = ((SAMLAuthenticationToken) submitted).getLoginView();
+        } else {
+            loginView = new SAMLLoginView((Response) submitted.getPrincipal());
+        }
+        UserDetails user;
+        if (assertionConsumer instanceof LoginViewAssertionConsumer) {
+            user = ((LoginViewAssertionConsumer) assertionConsumer).consume(loginView);
+        } else {
+            user = assertionConsumer.consume(loginView.getResponse());
+        }
+
+        SAMLAuthenticationToken authenticated = new SAMLAuthenticationToken(user, (String) submitted.getCredentials(), user.getAuthorities(), SAMLSessionKey.of(loginView));
 
         authenticated.setDetails(submitted.getDetails());
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.Serializable;
+
+/**
+ * Identifies the session a user has at an identity provider: the issuer, the NameID and the SessionIndex of the
+ * AuthnStatement. It is kept with the authentication, to send a LogoutRequest for it, and in the
+ * {@link SessionIndex}, to find the local sessions a LogoutRequest of the identity provider is about.
+ */
+public class SAMLSessionKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String issuer;
+    private final String nameID;
+    private final String nameIDFormat;
+    private final String sessionIndex;
+
+    public SAMLSessionKey(String issuer, String nameID, String nameIDFormat, String sessionIndex) {
+        super();
+        this.issuer = issuer;
+        this.nameID = nameID;
+        this.nameIDFormat = nameIDFormat;
+        this.sessionIndex = sessionIndex;
+    }
+
+    /**
+     * @return the key of the login, or <code>null</code> if the Response has no Issuer or NameID
+     */
+    public static SAMLSessionKey of(SAMLLoginView loginView) {
+        if (loginView.getIssuer() == null || loginView.getNameID() == null) {
+            return null;
+        }
+        return new SAMLSessionKey(loginView.getIssuer(), loginView.getNameID(), loginView.getNameIDFormat(), loginView.getSessionIndex());
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getNameID() {
+        return nameID;
+    }
+
+    /**
+     * @return the Format of the NameID, or <code>null</code> if it has none
+     */
+    public String getNameIDFormat() {
+        return nameIDFormat;
+    }
+
+    /**
+     * @return the SessionIndex, or <code>null</code> if the identity provider did not send one
+     */
+    public String getSessionIndex() {
+        return sessionIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "SAMLSessionKey[issuer=" + issuer + ", nameID=" + nameID + ", sessionIndex=" + sessionIndex + "]";
+    }
+}
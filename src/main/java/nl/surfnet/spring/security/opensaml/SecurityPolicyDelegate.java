@@ -16,14 +16,27 @@
 
 package nl.surfnet.spring.security.opensaml;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
+import org.opensaml.common.binding.security.IssueInstantRule;
+import org.opensaml.common.binding.security.MessageReplayRule;
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.security.SecurityPolicy;
 import org.opensaml.ws.security.SecurityPolicyException;
 import org.opensaml.ws.security.SecurityPolicyRule;
 import org.opensaml.ws.security.provider.BasicSecurityPolicy;
 
+/**
+ * Security policy that evaluates its rules ordered by their {@link RuleCost}, so that cheap structural and
+ * temporal checks reject a message before the signature is verified. Rules of the same cost keep the order in
+ * which they were configured. Rules that are not {@link CostAwareSecurityPolicyRule}s are classified by type;
+ * unknown rules are treated as {@link RuleCost#CRYPTOGRAPHIC}.
+ * <p/>
+ * Rules that are {@link SecurityPolicyFailureListener}s are told when a message has been rejected, and by which rule.
+ */
 public class SecurityPolicyDelegate implements SecurityPolicy {
 
     private final BasicSecurityPolicy basicSecurityPolicy;
@@ -31,15 +44,44 @@ public class SecurityPolicyDelegate implements SecurityPolicy {
     public SecurityPolicyDelegate(List<SecurityPolicyRule> securityPolicyRules) {
         super();
         basicSecurityPolicy = new BasicSecurityPolicy();
-        basicSecurityPolicy.getPolicyRules().addAll(securityPolicyRules);
+        List<SecurityPolicyRule> orderedRules = new ArrayList<SecurityPolicyRule>(securityPolicyRules);
+        Collections.sort(orderedRules, new Comparator<SecurityPolicyRule>() {
+            public int compare(SecurityPolicyRule rule1, SecurityPolicyRule rule2) {
+                return costOf(rule1).compareTo(costOf(rule2));
+            }
+        });
+        basicSecurityPolicy.getPolicyRules().addAll(orderedRules);
     }
 
     public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
-        basicSecurityPolicy.evaluate(messageContext);
+        for (SecurityPolicyRule failedRule : basicSecurityPolicy.getPolicyRules()) {
+            try {
+                failedRule.evaluate(messageContext);
+            } catch (SecurityPolicyException e) {
+                for (SecurityPolicyRule rule : basicSecurityPolicy.getPolicyRules()) {
+                    if (rule instanceof SecurityPolicyFailureListener) {
+                        ((SecurityPolicyFailureListener) rule).onSecurityPolicyFailure(messageContext, failedRule, e);
+                    }
+                }
+                throw e;
+            }
+        }
     }
 
     public List<SecurityPolicyRule> getPolicyRules() {
         return basicSecurityPolicy.getPolicyRules();
     }
 
+    static RuleCost costOf(SecurityPolicyRule rule) {
+        if (rule instanceof CostAwareSecurityPolicyRule) {
+            return ((CostAwareSecurityPolicyRule) rule).getCost();
+        } else if (rule instanceof IssueInstantRule) {
+            return RuleCost.TEMPORAL;
+        } else if (rule instanceof MessageReplayRule) {
+            // records the message ID as a side effect
+            return RuleCost.COMMIT;
+        }
+        return RuleCost.CRYPTOGRAPHIC;
+    }
+
 }
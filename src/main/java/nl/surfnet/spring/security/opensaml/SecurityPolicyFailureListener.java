@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.opensaml.ws.security.SecurityPolicyRule;
+
+/**
+ * Implemented by security policy rules that want to know when the {@link SecurityPolicyDelegate} rejected a
+ * message, whichever rule rejected it.
+ */
+public interface SecurityPolicyFailureListener {
+
+    /**
+     * @param failedRule the rule that rejected the message
+     */
+    void onSecurityPolicyFailure(MessageContext messageContext, SecurityPolicyRule failedRule, SecurityPolicyException exception);
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.web.filter.GenericFilterBean;
+
+/**
+ * Hands the requests for the assertion consumer of a tenant to the {@link SAMLResponseAuthenticationProcessingFilter}
+ * of that tenant, so that a filter chain with many tenants has one filter for all of them instead of one per tenant.
+ * <p/>
+ * The filters are kept in a map keyed by the path of their assertion consumer within the application, so finding
+ * the filter of a request takes one lookup whatever the number of tenants. Other requests pass through.
+ */
+public class ServiceProviderRoutingFilter extends GenericFilterBean {
+
+    private Map<String, Filter> filters;
+
+    /**
+     * @param filters the authentication filters of the tenants, keyed by the URI of their assertion consumer
+     */
+    @Required
+    public void setFilters(final Map<String, Filter> filters) {
+        this.filters = Collections.unmodifiableMap(new HashMap<String, Filter>(filters));
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        Filter filter = filters.get(pathOf((HttpServletRequest) request));
+        if (filter == null) {
+            chain.doFilter(request, response);
+        } else {
+            filter.doFilter(request, response, chain);
+        }
+    }
+
+    /**
+     * @return the URIs of the assertion consumers of the tenants
+     */
+    public Iterable<String> getAssertionConsumerURIs() {
+        return filters.keySet();
+    }
+
+    static String pathOf(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        int pathParameters = uri.indexOf(';');
+        if (pathParameters >= 0) {
+            // such as ;jsessionid=
+            uri = uri.substring(0, pathParameters);
+        }
+        String contextPath = request.getContextPath();
+        return uri.startsWith(contextPath) ? uri.substring(contextPath.length()) : uri;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The local sessions of the users that logged in, by the issuer and NameID of their login, so that a LogoutRequest
+ * of an identity provider finds the sessions it is about without going through all sessions.
+ * <p/>
+ * A session is added by binding a {@link Binding} to it. The binding is a session listener: it removes the session
+ * from the index when the session is invalidated or times out, and follows the user to the new session when session
+ * fixation protection migrates the attributes. No listener has to be configured in <code>web.xml</code>.
+ * <p/>
+ * The sessions of one subject are kept in a small list guarded by that list, so different subjects never contend.
+ * The number of indexed sessions is bounded; sessions that log in while the index is full are not indexed and
+ * cannot be logged out by their identity provider, which is logged and counted.
+ */
+@ManagedResource(description = "Local sessions by SAML subject, for Single Logout")
+public class SessionIndex {
+
+    private final static Logger log = LoggerFactory.getLogger(SessionIndex.class);
+
+    public static final String ATTRIBUTE = SessionIndex.class.getName() + ".BINDING";
+
+    private final ConcurrentMap<Subject, List<Binding>> subjects;
+    private final int maxSessions;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong loggedOut = new AtomicLong();
+
+    /**
+     * @param maxSessions the maximum number of sessions indexed
+     */
+    public SessionIndex(int maxSessions) {
+        super();
+        this.maxSessions = maxSessions;
+        this.subjects = new ConcurrentHashMap<Subject, List<Binding>>(Math.min(maxSessions, 1 << 16));
+    }
+
+    /**
+     * Indexes the session under the key, for as long as it lives.
+     */
+    public void bind(HttpSession session, SAMLSessionKey sessionKey) {
+        session.setAttribute(ATTRIBUTE, new Binding(this, sessionKey));
+    }
+
+    /**
+     * @param sessionIndexes the SessionIndexes the sessions are limited to, all sessions of the subject are returned
+     *                       when it is empty
+     * @return the sessions of the subject
+     */
+    public List<HttpSession> find(String issuer, String nameID, Collection<String> sessionIndexes) {
+        List<Binding> bindings = subjects.get(new Subject(issuer, nameID));
+        if (bindings == null) {
+            return new ArrayList<HttpSession>(0);
+        }
+        List<HttpSession> found = new ArrayList<HttpSession>(1);
+        synchronized (bindings) {
+            for (Binding binding : bindings) {
+                if (sessionIndexes.isEmpty() || sessionIndexes.contains(binding.sessionKey.getSessionIndex())) {
+                    found.add(binding.session);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Invalidates the sessions of the subject.
+     *
+     * @return the number of sessions invalidated
+     */
+    public int logout(String issuer, String nameID, Collection<String> sessionIndexes) {
+        int count = 0;
+        for (HttpSession session : find(issuer, nameID, sessionIndexes)) {
+            try {
+                session.invalidate();
+                count++;
+            } catch (IllegalStateException e) {
+                log.debug("Session {} was invalidated already", session.getId());
+            }
+        }
+        loggedOut.addAndGet(count);
+        log.debug("Invalidated {} sessions of {} at {}", new Object[]{count, nameID, issuer});
+        return count;
+    }
+
+    @ManagedAttribute(description = "Sessions indexed")
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    @ManagedAttribute(description = "Maximum number of sessions indexed")
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    @ManagedAttribute(description = "Sessions not indexed because the index was full")
+    public long getRefused() {
+        return refused.get();
+    }
+
+    @ManagedAttribute(description = "Sessions invalidated by LogoutRequests")
+    public long getLoggedOut() {
+        return loggedOut.get();
+    }
+
+    private boolean add(Binding binding) {
+        if (sessions.incrementAndGet() > maxSessions) {
+            sessions.decrementAndGet();
+            if (refused.getAndIncrement() % 1000 == 0) {
+                log.warn("Session index is full, the session of {} can not be logged out by its identity provider", binding.sessionKey.getNameID());
+            }
+            return false;
+        }
+        Subject subject = new Subject(binding.sessionKey.getIssuer(), binding.sessionKey.getNameID());
+        while (true) {
+            List<Binding> bindings = subjects.get(subject);
+            if (bindings == null) {
+                List<Binding> created = new ArrayList<Binding>(1);
+                bindings = subjects.putIfAbsent(subject, created);
+                if (bindings == null) {
+                    bindings = created;
+                }
+            }
+            synchronized (bindings) {
+                // an emptied list is removed from the map under its lock, after which a new one has to be created
+                if (subjects.get(subject) == bindings) {
+                    bindings.add(binding);
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void remove(Binding binding) {
+        Subject subject = new Subject(binding.sessionKey.getIssuer(), binding.sessionKey.getNameID());
+        List<Binding> bindings = subjects.get(subject);
+        if (bindings == null) {
+            return;
+        }
+        synchronized (bindings) {
+            if (bindings.remove(binding)) {
+                sessions.decrementAndGet();
+            }
+            if (bindings.isEmpty()) {
+                subjects.remove(subject, bindings);
+            }
+        }
+    }
+
+    /**
+     * The issuer and NameID of a login, which identify the subject regardless of its session. It refers to the
+     * strings of the {@link SAMLSessionKey} instead of concatenating them, which would double the size of the index.
+     */
+    private static final class Subject {
+
+        private final String issuer;
+        private final String nameID;
+        private final int hash;
+
+        Subject(String issuer, String nameID) {
+            this.issuer = issuer;
+            this.nameID = nameID;
+            this.hash = 31 * issuer.hashCode() + nameID.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Subject)) {
+                return false;
+            }
+            Subject subject = (Subject) other;
+            return hash == subject.hash && nameID.equals(subject.nameID) && issuer.equals(subject.issuer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The session attribute that keeps a session in the index. It is serializable, so sessions that carry it can
+     * be persisted or replicated, but a deserialized binding is not indexed on the node that reads it.
+     */
+    public static final class Binding implements HttpSessionBindingListener, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient SessionIndex index;
+        private final SAMLSessionKey sessionKey;
+        private transient volatile HttpSession session;
+
+        Binding(SessionIndex index, SAMLSessionKey sessionKey) {
+            this.index = index;
+            this.sessionKey = sessionKey;
+        }
+
+        public SAMLSessionKey getSessionKey() {
+            return sessionKey;
+        }
+
+        public void valueBound(HttpSessionBindingEvent event) {
+            if (index == null) {
+                return;
+            }
+            HttpSession previous = session;
+            session = event.getSession();
+            // when the new session is bound before the old one is unbound, the index already refers to this binding
+            if (previous == null && !index.add(this)) {
+                session = null;
+            }
+        }
+
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            if (index != null && session != null && event.getSession() == session) {
+                index.remove(this);
+                session = null;
+            }
+        }
+    }
+}
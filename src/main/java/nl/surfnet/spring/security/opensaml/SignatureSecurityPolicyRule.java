@@ -16,14 +16,26 @@
 
 package nl.surfnet.spring.security.opensaml;
 
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.opensaml.Configuration;
 import org.opensaml.common.SignableSAMLObject;
-import org.opensaml.saml2.core.Assertion;
-import org.opensaml.saml2.core.Response;
 import org.opensaml.security.SAMLSignatureProfileValidator;
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.security.SecurityPolicyException;
-import org.opensaml.ws.security.SecurityPolicyRule;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.credential.CredentialResolver;
 import org.opensaml.xml.security.credential.UsageType;
@@ -31,13 +43,19 @@ import org.opensaml.xml.security.criteria.EntityIDCriteria;
 import org.opensaml.xml.security.criteria.UsageCriteria;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.signature.Signature;
-import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
+import org.opensaml.xml.signature.SignatureTrustEngine;
 import org.opensaml.xml.validation.ValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 
+import nl.surfnet.spring.security.opensaml.crypt.CachingSignatureTrustEngine;
+import nl.surfnet.spring.security.opensaml.crypt.JCAInstancePool;
+import nl.surfnet.spring.security.opensaml.crypt.PreparedSignature;
+import nl.surfnet.spring.security.opensaml.util.Clock;
+
 /**
  * Rule to check that the message has been signed by an issuer that has credentials
  * in the keystore.
@@ -46,14 +64,28 @@ import org.springframework.beans.factory.annotation.Required;
  * relies on role info to be set (which we will not be using).  Also, we will insist
  * that the message be signed and not rely on an additional rule to check the isAuthenticated
  * flag on the message context.
+ * <p/>
+ * With parallel verification enabled, the signature values of a signed Response and its signed Assertions
+ * are verified concurrently on a dedicated pool. Canonicalization and the reference digests still run on
+ * the calling thread, as the DOM is not thread-safe. The queue of the pool is bounded; when it is full the
+ * calling thread verifies the signature value itself, so a saturated pool degrades to sequential verification.
  */
-public class SignatureSecurityPolicyRule implements InitializingBean, SecurityPolicyRule {
+public class SignatureSecurityPolicyRule implements InitializingBean, DisposableBean, CostAwareSecurityPolicyRule {
 
     private final static Logger log = LoggerFactory.getLogger(SignatureSecurityPolicyRule.class);
 
     private CredentialResolver credentialResolver;
+    private CertificateStore certificateStore;
     private final SAMLSignatureProfileValidator samlSignatureProfileValidator;
-    ExplicitKeySignatureTrustEngine trustEngine;
+    SignatureTrustEngine trustEngine;
+    private CachingSignatureTrustEngine cachingTrustEngine;
+
+    private Clock clock = Clock.SYSTEM;
+
+    private boolean parallelVerification;
+    private int verificationParallelism = Runtime.getRuntime().availableProcessors();
+    private int verificationQueueCapacity = 100;
+    private ThreadPoolExecutor verificationPool;
 
     public SignatureSecurityPolicyRule(SAMLSignatureProfileValidator samlSignatureProfileValidator) {
         super();
@@ -65,6 +97,42 @@ public class SignatureSecurityPolicyRule implements InitializingBean, SecurityPo
         this.credentialResolver = credentialResolver;
     }
 
+    /**
+     * @param certificateStore the store of which changes invalidate the cached keys
+     */
+    public void setCertificateStore(final CertificateStore certificateStore) {
+        this.certificateStore = certificateStore;
+    }
+
+    /**
+     * @param clock the clock the trust engine records the last successful verification of a key with
+     */
+    public void setClock(final Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param parallelVerification whether the signatures of the Response and its Assertions are verified concurrently
+     */
+    public void setParallelVerification(final boolean parallelVerification) {
+        this.parallelVerification = parallelVerification;
+    }
+
+    /**
+     * @param verificationParallelism the number of threads of the pool that verifies the signatures concurrently
+     */
+    public void setVerificationParallelism(final int verificationParallelism) {
+        this.verificationParallelism = verificationParallelism;
+    }
+
+    /**
+     * @param verificationQueueCapacity the number of verifications that can wait for a thread of the pool, beyond
+     *                                  which the calling thread verifies the signature itself
+     */
+    public void setVerificationQueueCapacity(final int verificationQueueCapacity) {
+        this.verificationQueueCapacity = verificationQueueCapacity;
+    }
+
     public void afterPropertiesSet() throws Exception {
 
         System.out.println("Aap " + Configuration.getGlobalSecurityConfiguration());
@@ -72,7 +140,36 @@ public class SignatureSecurityPolicyRule implements InitializingBean, SecurityPo
         KeyInfoCredentialResolver keyInfoCredResolver =
                 Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver();
 
-        trustEngine = new ExplicitKeySignatureTrustEngine(credentialResolver, keyInfoCredResolver);
+        cachingTrustEngine = new CachingSignatureTrustEngine(credentialResolver, keyInfoCredResolver, new JCAInstancePool());
+        if (certificateStore != null) {
+            cachingTrustEngine.setCertificateStore(certificateStore);
+        }
+        cachingTrustEngine.setClock(clock);
+        trustEngine = cachingTrustEngine;
+
+        if (parallelVerification) {
+            verificationPool = new ThreadPoolExecutor(verificationParallelism, verificationParallelism, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(verificationQueueCapacity), new VerificationThreadFactory(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    public void destroy() {
+        if (verificationPool != null) {
+            // let queued verifications finish, their callers are waiting for them
+            verificationPool.shutdown();
+        }
+    }
+
+    /**
+     * @return the trust engine, which exposes the hit counters of the verification keys per issuer
+     */
+    public CachingSignatureTrustEngine getTrustEngine() {
+        return cachingTrustEngine;
+    }
+
+    public RuleCost getCost() {
+        return RuleCost.CRYPTOGRAPHIC;
     }
 
     public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
@@ -83,24 +180,33 @@ public class SignatureSecurityPolicyRule implements InitializingBean, SecurityPo
             throw new SecurityPolicyException("Inbound Message is not a SignableSAMLObject");
         }
 
-        Response response = (Response) messageContext.getInboundMessage();
-
-        Assertion assertion = response.getAssertions().get(0);
-
-        if (!response.isSigned() && !assertion.isSigned()) {
-            throw new SecurityPolicyException("The SAML response was not signed");
+        SAMLLoginView loginView = SAMLLoginView.of(messageContext);
+        List<SignableSAMLObject> signedObjects;
+        if (loginView == null) {
+            // other messages, such as LogoutRequests, have to be signed themselves
+            SignableSAMLObject samlMessage = (SignableSAMLObject) messageContext.getInboundMessage();
+            if (!samlMessage.isSigned()) {
+                throw new SecurityPolicyException("The SAML message was not signed");
+            }
+            signedObjects = Collections.singletonList(samlMessage);
+        } else {
+            // Either the response or every assertion in it has to be signed
+            if (!loginView.isSignatureCovered()) {
+                throw new SecurityPolicyException("The SAML response was not signed");
+            }
+            // Verify the response signature and those of the signed assertions
+            signedObjects = loginView.getSignedObjects();
         }
 
-        // Verify the response signature
-        if (response.isSigned()) {
-            checkSignatureProfile(response);
-            checkMessageSignature(messageContext, response);
+        for (SignableSAMLObject signedObject : signedObjects) {
+            checkSignatureProfile(signedObject);
         }
-
-        // Verify the assertion signature
-        if (assertion.isSigned()) {
-            checkSignatureProfile(assertion);
-            checkMessageSignature(messageContext, assertion);
+        if (verificationPool != null && !verificationPool.isShutdown() && signedObjects.size() > 1) {
+            checkMessageSignaturesConcurrently(messageContext, signedObjects);
+        } else {
+            for (SignableSAMLObject signedObject : signedObjects) {
+                checkMessageSignature(messageContext, signedObject);
+            }
         }
     }
 
@@ -132,4 +238,89 @@ public class SignatureSecurityPolicyRule implements InitializingBean, SecurityPo
             throw new SecurityPolicyException("Error evaluating the signature", e);
         }
     }
+
+    /**
+     * Submits the verification of the signature values to the pool, checks the references on this thread while
+     * the pool is busy and fails on the first verification that does not succeed.
+     */
+    private void checkMessageSignaturesConcurrently(MessageContext messageContext,
+                                                    List<SignableSAMLObject> signedObjects) throws SecurityPolicyException {
+        String issuer = messageContext.getInboundMessageIssuer();
+        log.debug("Inbound issuer is {}", issuer);
+
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(verificationPool);
+        List<Future<Boolean>> verifications = new ArrayList<Future<Boolean>>(signedObjects.size());
+        List<PreparedSignature> preparedSignatures = new ArrayList<PreparedSignature>(signedObjects.size());
+        List<SignableSAMLObject> unprepared = new ArrayList<SignableSAMLObject>();
+        try {
+            for (SignableSAMLObject signedObject : signedObjects) {
+                PreparedSignature preparedSignature = cachingTrustEngine.prepare(signedObject.getSignature());
+                if (preparedSignature == null) {
+                    unprepared.add(signedObject);
+                    continue;
+                }
+                List<PublicKey> keys = cachingTrustEngine.getTrustedKeys(issuer);
+                if (keys.isEmpty()) {
+                    throw new SecurityPolicyException("Signature was either invalid or signing key could not be established as trusted");
+                }
+                verifications.add(completionService.submit(new SignatureValueVerification(issuer, preparedSignature, keys)));
+                preparedSignatures.add(preparedSignature);
+            }
+
+            for (PreparedSignature preparedSignature : preparedSignatures) {
+                if (!cachingTrustEngine.verifyReferences(preparedSignature)) {
+                    throw new SecurityPolicyException("Signature was either invalid or signing key could not be established as trusted");
+                }
+            }
+            for (SignableSAMLObject signedObject : unprepared) {
+                checkMessageSignature(messageContext, signedObject);
+            }
+
+            for (int i = 0; i < verifications.size(); i++) {
+                if (!completionService.take().get()) {
+                    throw new SecurityPolicyException("Signature was either invalid or signing key could not be established as trusted");
+                }
+            }
+        } catch (org.opensaml.xml.security.SecurityException e) {
+            throw new SecurityPolicyException("Error evaluating the signature", e);
+        } catch (ExecutionException e) {
+            throw new SecurityPolicyException("Error evaluating the signature", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityPolicyException("Interrupted while evaluating the signature", e);
+        } finally {
+            // nothing left to wait for once one of the verifications failed
+            for (Future<Boolean> verification : verifications) {
+                verification.cancel(false);
+            }
+        }
+    }
+
+    private class SignatureValueVerification implements Callable<Boolean> {
+
+        private final String issuer;
+        private final PreparedSignature preparedSignature;
+        private final List<PublicKey> keys;
+
+        SignatureValueVerification(String issuer, PreparedSignature preparedSignature, List<PublicKey> keys) {
+            this.issuer = issuer;
+            this.preparedSignature = preparedSignature;
+            this.keys = keys;
+        }
+
+        public Boolean call() throws Exception {
+            return cachingTrustEngine.verifySignatureValue(issuer, preparedSignature, keys) != null;
+        }
+    }
+
+    private static class VerificationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "saml-verify-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
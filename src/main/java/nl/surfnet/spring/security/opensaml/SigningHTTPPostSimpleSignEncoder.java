@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.opensaml.saml2.binding.encoding.HTTPPostSimpleSignEncoder;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.xml.security.SecurityConfiguration;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+
+import nl.surfnet.spring.security.opensaml.crypt.MessageSigner;
+
+/**
+ * HTTP-POST-SimpleSign encoder that signs the form data with the {@link MessageSigner}, instead of looking up
+ * a new JCA Signature for every message. The protocol message itself gets no XML signature, as the SimpleSign
+ * signature already covers it.
+ */
+public class SigningHTTPPostSimpleSignEncoder extends HTTPPostSimpleSignEncoder {
+
+    private final MessageSigner messageSigner;
+
+    public SigningHTTPPostSimpleSignEncoder(VelocityEngine engine, String templateId, MessageSigner messageSigner) {
+        super(engine, templateId, false);
+        this.messageSigner = messageSigner;
+    }
+
+    @Override
+    protected String getSignatureAlgorithmURI(Credential credential, SecurityConfiguration config) throws MessageEncodingException {
+        return messageSigner.getSignatureAlgorithmURI();
+    }
+
+    @Override
+    protected String generateSignature(Credential signingCredential, String algorithmURI, String formData) throws MessageEncodingException {
+        try {
+            return messageSigner.sign(algorithmURI, formData);
+        } catch (SecurityException e) {
+            throw new MessageEncodingException("Unable to sign form data", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.binding.decoding.HTTPPostSimpleSignDecoder;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.xml.parse.ParserPool;
+
+/**
+ * HTTP-POST-SimpleSign decoder that accepts a {@link HTTPRequestURLTransport} as well as the
+ * <code>HttpServletRequestAdapter</code> OpenSAML requires to check the Destination of a message.
+ */
+public class TransportNeutralHTTPPostSimpleSignDecoder extends HTTPPostSimpleSignDecoder {
+
+    public TransportNeutralHTTPPostSimpleSignDecoder(ParserPool pool) {
+        super(pool);
+    }
+
+    @Override
+    protected String getActualReceiverEndpointURI(SAMLMessageContext messageContext) throws MessageDecodingException {
+        if (messageContext.getInboundMessageTransport() instanceof HTTPRequestURLTransport) {
+            return ((HTTPRequestURLTransport) messageContext.getInboundMessageTransport()).getRequestURL();
+        }
+        return super.getActualReceiverEndpointURI(messageContext);
+    }
+}
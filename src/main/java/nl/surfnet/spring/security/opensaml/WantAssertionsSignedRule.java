@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml;
+
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Requires every assertion of a Response to be signed, also when the Response itself is signed, like the
+ * <code>WantAssertionsSigned</code> attribute of SAML metadata.
+ * <p/>
+ * The check itself is cheap, but it runs with the cryptographic rules so that it sees the assertions decrypted by
+ * the {@link AssertionDecryptionRule}; configured after that rule and before the {@link SignatureSecurityPolicyRule}
+ * it still rejects a message before its signatures are verified. Messages other than Responses are left alone.
+ */
+public class WantAssertionsSignedRule implements CostAwareSecurityPolicyRule {
+
+    private final static Logger log = LoggerFactory.getLogger(WantAssertionsSignedRule.class);
+
+    public RuleCost getCost() {
+        return RuleCost.CRYPTOGRAPHIC;
+    }
+
+    public void evaluate(MessageContext messageContext) throws SecurityPolicyException {
+        SAMLLoginView loginView = SAMLLoginView.of(messageContext);
+        if (loginView == null) {
+            return;
+        }
+        for (Assertion assertion : loginView.getAssertions()) {
+            if (!assertion.isSigned()) {
+                log.warn("Assertion {} of {} was not signed", assertion.getID(), loginView.getIssuer());
+                throw new SecurityPolicyException("The SAML assertion was not signed");
+            }
+        }
+    }
+}
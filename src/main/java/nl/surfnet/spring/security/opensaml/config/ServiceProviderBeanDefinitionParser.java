@@ -16,46 +16,104 @@
 
 package nl.surfnet.spring.security.opensaml.config;
 
-import java.io.IOException;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.velocity.app.VelocityEngine;
 import org.opensaml.DefaultBootstrap;
-import org.opensaml.common.binding.security.IssueInstantRule;
-import org.opensaml.common.binding.security.MessageReplayRule;
-import org.opensaml.saml2.binding.decoding.HTTPPostSimpleSignDecoder;
 import org.opensaml.security.SAMLSignatureProfileValidator;
-import org.opensaml.util.storage.MapBasedStorageService;
-import org.opensaml.util.storage.ReplayCache;
-import org.opensaml.ws.security.provider.StaticSecurityPolicyResolver;
 import org.opensaml.xml.parse.BasicParserPool;
 import org.springframework.beans.BeanMetadataElement;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
 import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.ManagedMap;
 import org.springframework.beans.factory.xml.AbstractBeanDefinitionParser;
 import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
 import org.springframework.security.web.savedrequest.HttpSessionRequestCache;
 import org.springframework.ui.velocity.VelocityEngineFactoryBean;
+import org.springframework.util.xml.DomUtils;
 import org.w3c.dom.Element;
 
+import nl.surfnet.spring.security.opensaml.ArtifactResolver;
 import nl.surfnet.spring.security.opensaml.AssertionConsumerImpl;
+import nl.surfnet.spring.security.opensaml.AssertionDecryptionRule;
+import nl.surfnet.spring.security.opensaml.AuthenticationCookies;
 import nl.surfnet.spring.security.opensaml.AuthenticationFailureHandlerImpl;
+import nl.surfnet.spring.security.opensaml.CookieAuthenticationFilter;
+import nl.surfnet.spring.security.opensaml.CookieAuthenticationSuccessHandler;
+import nl.surfnet.spring.security.opensaml.HTTPArtifactResolvingDecoder;
+import nl.surfnet.spring.security.opensaml.InResponseToConsumeRule;
+import nl.surfnet.spring.security.opensaml.InResponseToLookupRule;
+import nl.surfnet.spring.security.opensaml.IssueInstantCheckRule;
+import nl.surfnet.spring.security.opensaml.IssuerSecurityPolicyResolver;
+import nl.surfnet.spring.security.opensaml.IssuerAdmissionRule;
+import nl.surfnet.spring.security.opensaml.MessageReplayLookupRule;
+import nl.surfnet.spring.security.opensaml.MessageReplayRecordRule;
+import nl.surfnet.spring.security.opensaml.RelayStateRequestCache;
 import nl.surfnet.spring.security.opensaml.SAMLMessageHandlerImpl;
 import nl.surfnet.spring.security.opensaml.SAMLResponseAuthenticationProcessingFilter;
 import nl.surfnet.spring.security.opensaml.SAMLResponseAuthenticationProvider;
 import nl.surfnet.spring.security.opensaml.SecurityPolicyDelegate;
+import nl.surfnet.spring.security.opensaml.ServiceProviderRoutingFilter;
+import nl.surfnet.spring.security.opensaml.SessionIndex;
 import nl.surfnet.spring.security.opensaml.SignatureSecurityPolicyRule;
+import nl.surfnet.spring.security.opensaml.TransportNeutralHTTPPostSimpleSignDecoder;
+import nl.surfnet.spring.security.opensaml.WantAssertionsSignedRule;
+import nl.surfnet.spring.security.opensaml.crypt.AssertionDecrypter;
+import nl.surfnet.spring.security.opensaml.crypt.JCAInstancePool;
 import nl.surfnet.spring.security.opensaml.crypt.KeyStoreCredentialResolverDelegate;
+import nl.surfnet.spring.security.opensaml.crypt.MessageSigner;
+import nl.surfnet.spring.security.opensaml.crypt.RelayStateCodec;
+import nl.surfnet.spring.security.opensaml.crypt.ServiceProviderKey;
+import nl.surfnet.spring.security.opensaml.crypt.TokenSealer;
+import nl.surfnet.spring.security.opensaml.util.CachedClock;
+import nl.surfnet.spring.security.opensaml.util.ConcurrencyLimiter;
+import nl.surfnet.spring.security.opensaml.util.ConcurrentReplayCache;
+import nl.surfnet.spring.security.opensaml.util.DecayingFailureCache;
+import nl.surfnet.spring.security.opensaml.util.IdentityProviderCircuitBreaker;
+import nl.surfnet.spring.security.opensaml.util.OutstandingRequestStore;
+import nl.surfnet.spring.security.opensaml.util.SingleFlight;
+import nl.surfnet.spring.security.opensaml.xml.LazyAttributeUnmarshallerRegistrar;
 
 public class ServiceProviderBeanDefinitionParser extends AbstractBeanDefinitionParser {
 
     public static final String BEAN_REPLAYCACHE = "samlReplayCache";
     public static final String BEAN_KEYSTORECREDENTIALRESOLVER = "samlKeyStoreCredentialResolverDelegate";
+    public static final String BEAN_ASSERTIONDECRYPTER = "samlAssertionDecrypter";
+    public static final String BEAN_DECRYPTIONKEY = "samlDecryptionKey";
+    public static final String BEAN_SIGNINGKEY = "samlSigningKey";
+    public static final String BEAN_MESSAGESIGNER = "samlMessageSigner";
+    public static final String BEAN_OUTSTANDINGREQUESTSTORE = "samlOutstandingRequestStore";
+    public static final String BEAN_CLOCK = "samlClock";
+    public static final String BEAN_AUTHENTICATIONEXECUTOR = "samlAuthenticationExecutor";
+    public static final String BEAN_CONCURRENCYLIMITER = "samlConcurrencyLimiter";
+    public static final String BEAN_SINGLEFLIGHT = "samlResponseSingleFlight";
+    public static final String BEAN_RELAYSTATECODEC = "samlRelayStateCodec";
+    public static final String BEAN_REQUESTCACHE = "samlRequestCache";
+    public static final String BEAN_AUTHENTICATIONCOOKIES = "samlAuthenticationCookies";
+    public static final String BEAN_COOKIEAUTHENTICATIONFILTER = "samlCookieAuthenticationFilter";
+    public static final String BEAN_AUTHENTICATIONFAILUREHANDLER = "samlAuthenticationFailureHandler";
+    public static final String BEAN_IDPCIRCUITBREAKER = "samlIdentityProviderCircuitBreaker";
+    public static final String BEAN_SESSIONINDEX = "samlSessionIndex";
+    public static final String BEAN_ARTIFACTRESOLVER = "samlArtifactResolver";
+    public static final String BEAN_PARSERPOOL = "samlParserPool";
+    public static final String BEAN_VELOCITYENGINE = "samlVelocityEngine";
+    public static final String BEAN_POSTSIMPLESIGNDECODER = "samlPostSimpleSignDecoder";
+    public static final String BEAN_JCAINSTANCEPOOL = "samlJCAInstancePool";
+    public static final String BEAN_SERVICEPROVIDERROUTER = "samlServiceProviderRouter";
+
+    private static final long RETRY_BUDGET_HALF_LIFE = 300000L;
+    public static final String BEAN_ISSUERADMISSIONRULE = "samlIssuerAdmissionRule";
     public static final String BEAN_SECURITYPOLICY = "samlSecurityPolicy";
     public static final String BEAN_SECURITYPOLICYRESOLVER = "samlSecurityPolicyResolver";
+    public static final String BEAN_SIGNATURERULE = "samlSignatureRule";
+    public static final String BEAN_ASSERTIONDECRYPTIONRULE = "samlAssertionDecryptionRule";
     public static final String BEAN_SAMLINITIALIZER = "samlInitializer";
+    public static final String BEAN_LAZYATTRIBUTEUNMARSHALLER = "samlLazyAttributeUnmarshallerRegistrar";
     public static final String BEAN_ASSERTIONCONSUMER = "samlAssertionConsumer";
     public static final String BEAN_AUTHENTICATIONPROVIDER = "samlAuthenticationProvider";
 
@@ -63,9 +121,41 @@ public class ServiceProviderBeanDefinitionParser extends AbstractBeanDefinitionP
     private int newExpires = 300;
     private long replayCacheDuration = 14400000;
     private int poolSizeInt = 2;
+    private int issuerFailureThreshold = 10;
+    private int issuerFailureHalfLife = 60;
+    private int issuerFailureCacheSize = 10000;
+    private int outstandingRequestCapacity = 4096;
+    private int outstandingRequestLifetime = 300;
+    private int authenticationThreads = Runtime.getRuntime().availableProcessors();
+    private int authenticationQueueCapacity = 100;
+    private int asyncAuthenticationTimeout = 30;
+    private int admissionQueueSize = 16;
+    private int admissionQueueTimeout = 100;
+    private int targetAuthenticationLatency = 250;
+    private int retryAfter = 1;
+    private int authenticationCookieLifetime = 3600;
+    private int retryBackoff = 1000;
+    private int idpFailureHalfLife = 60;
+    private int maxIndexedSessions = 100000;
+    private int artifactResolutionConnections = 20;
+    private int artifactResolutionTimeout = 5000;
+
+    private String tenant;
 
     @Override
     protected AbstractBeanDefinition parseInternal(final Element element, final ParserContext parserContext) {
+        // a parser of its own for every element, so the settings of one service provider do not leak into the next
+        return new ServiceProviderBeanDefinitionParser().parseServiceProvider(element, parserContext);
+    }
+
+    private AbstractBeanDefinition parseServiceProvider(final Element element, final ParserContext parserContext) {
+
+        if (StringUtils.isNotBlank(element.getAttribute("tenant"))) {
+            tenant = element.getAttribute("tenant");
+        }
+        if (parserContext.getRegistry().containsBeanDefinition(beanName(BEAN_SECURITYPOLICY))) {
+            parserContext.getReaderContext().error("Every service-provider but one needs a tenant of its own", element);
+        }
 
         final String preAuthFilterRef = element.getAttribute("preauth-filter-ref");
         if (StringUtils.isBlank(preAuthFilterRef)) {
@@ -77,6 +167,11 @@ public class ServiceProviderBeanDefinitionParser extends AbstractBeanDefinitionP
             parserContext.getReaderContext().error("The message-handler-ref is mandatory", element);
         }
 
+        if (parserContext.getRegistry().containsBeanDefinition(messageHandlerRef)
+                || parserContext.getRegistry().containsBeanDefinition(preAuthFilterRef)) {
+            parserContext.getReaderContext().error("The message-handler-ref and preauth-filter-ref of a tenant have to be unique", element);
+        }
+
         final String certificatestoreRef = element.getAttribute("certificatestore-ref");
         if (StringUtils.isBlank(certificatestoreRef)) {
             parserContext.getReaderContext().error("The certificatestore-ref is mandatory", element);
@@ -130,93 +225,432 @@ public class ServiceProviderBeanDefinitionParser extends AbstractBeanDefinitionP
             parserContext.getReaderContext().error("An invalid value for issue-instant-check-valid-time-in-secs was supplied", element);
         }
 
+        final String failureThreshold = element.getAttribute("issuer-failure-threshold");
+        if (StringUtils.isNotBlank(failureThreshold)) {
+            try {
+                issuerFailureThreshold = Integer.parseInt(failureThreshold);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for issuer-failure-threshold was supplied", element);
+            }
+        }
+
+        final String failureHalfLife = element.getAttribute("issuer-failure-half-life-in-secs");
+        if (StringUtils.isNotBlank(failureHalfLife)) {
+            try {
+                issuerFailureHalfLife = Integer.parseInt(failureHalfLife);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for issuer-failure-half-life-in-secs was supplied", element);
+            }
+        }
+
+        final String requestCapacity = element.getAttribute("outstanding-request-capacity");
+        if (StringUtils.isNotBlank(requestCapacity)) {
+            try {
+                outstandingRequestCapacity = Integer.parseInt(requestCapacity);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for outstanding-request-capacity was supplied", element);
+            }
+        }
+
+        final String requestLifetime = element.getAttribute("outstanding-request-lifetime-in-secs");
+        if (StringUtils.isNotBlank(requestLifetime)) {
+            try {
+                outstandingRequestLifetime = Integer.parseInt(requestLifetime);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for outstanding-request-lifetime-in-secs was supplied", element);
+            }
+        }
+
+        final String threads = element.getAttribute("authentication-threads");
+        if (StringUtils.isNotBlank(threads)) {
+            try {
+                authenticationThreads = Integer.parseInt(threads);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for authentication-threads was supplied", element);
+            }
+        }
+
+        final String queueCapacity = element.getAttribute("authentication-queue-capacity");
+        if (StringUtils.isNotBlank(queueCapacity)) {
+            try {
+                authenticationQueueCapacity = Integer.parseInt(queueCapacity);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for authentication-queue-capacity was supplied", element);
+            }
+        }
+
+        final String asyncTimeout = element.getAttribute("async-authentication-timeout-in-secs");
+        if (StringUtils.isNotBlank(asyncTimeout)) {
+            try {
+                asyncAuthenticationTimeout = Integer.parseInt(asyncTimeout);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for async-authentication-timeout-in-secs was supplied", element);
+            }
+        }
+
+        final String queueSize = element.getAttribute("admission-queue-size");
+        if (StringUtils.isNotBlank(queueSize)) {
+            try {
+                admissionQueueSize = Integer.parseInt(queueSize);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for admission-queue-size was supplied", element);
+            }
+        }
+
+        final String queueTimeout = element.getAttribute("admission-queue-timeout-in-millis");
+        if (StringUtils.isNotBlank(queueTimeout)) {
+            try {
+                admissionQueueTimeout = Integer.parseInt(queueTimeout);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for admission-queue-timeout-in-millis was supplied", element);
+            }
+        }
+
+        final String targetLatency = element.getAttribute("target-authentication-latency-in-millis");
+        if (StringUtils.isNotBlank(targetLatency)) {
+            try {
+                targetAuthenticationLatency = Integer.parseInt(targetLatency);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for target-authentication-latency-in-millis was supplied", element);
+            }
+        }
+
+        final String retryAfterSecs = element.getAttribute("retry-after-in-secs");
+        if (StringUtils.isNotBlank(retryAfterSecs)) {
+            try {
+                retryAfter = Integer.parseInt(retryAfterSecs);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for retry-after-in-secs was supplied", element);
+            }
+        }
+
+        final String cookieLifetime = element.getAttribute("authentication-cookie-lifetime-in-secs");
+        if (StringUtils.isNotBlank(cookieLifetime)) {
+            try {
+                authenticationCookieLifetime = Integer.parseInt(cookieLifetime);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for authentication-cookie-lifetime-in-secs was supplied", element);
+            }
+        }
+
+        final String backoff = element.getAttribute("idp-retry-backoff-in-millis");
+        if (StringUtils.isNotBlank(backoff)) {
+            try {
+                retryBackoff = Integer.parseInt(backoff);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for idp-retry-backoff-in-millis was supplied", element);
+            }
+        }
+
+        final String idpHalfLife = element.getAttribute("idp-failure-half-life-in-secs");
+        if (StringUtils.isNotBlank(idpHalfLife)) {
+            try {
+                idpFailureHalfLife = Integer.parseInt(idpHalfLife);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for idp-failure-half-life-in-secs was supplied", element);
+            }
+        }
+
+        final String indexedSessions = element.getAttribute("max-indexed-sessions");
+        if (StringUtils.isNotBlank(indexedSessions)) {
+            try {
+                maxIndexedSessions = Integer.parseInt(indexedSessions);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for max-indexed-sessions was supplied", element);
+            }
+        }
+
+        final String resolutionConnections = element.getAttribute("artifact-resolution-max-connections");
+        if (StringUtils.isNotBlank(resolutionConnections)) {
+            try {
+                artifactResolutionConnections = Integer.parseInt(resolutionConnections);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for artifact-resolution-max-connections was supplied", element);
+            }
+        }
+
+        final String resolutionTimeout = element.getAttribute("artifact-resolution-timeout-in-millis");
+        if (StringUtils.isNotBlank(resolutionTimeout)) {
+            try {
+                artifactResolutionTimeout = Integer.parseInt(resolutionTimeout);
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for artifact-resolution-timeout-in-millis was supplied", element);
+            }
+        }
+
+        // Infrastructure shared by all service providers, registered by the first service-provider element
         BeanDefinitionBuilder bootstrapBean = BeanDefinitionBuilder.genericBeanDefinition(DefaultBootstrap.class);
         bootstrapBean.setInitMethodName("bootstrap");
-        parserContext.getRegistry().registerBeanDefinition(BEAN_SAMLINITIALIZER, bootstrapBean.getBeanDefinition());
+        registerShared(element, parserContext, BEAN_SAMLINITIALIZER, bootstrapBean);
+
+        // Leave attribute values in the DOM until they are asked for
+        if (Boolean.valueOf(element.getAttribute("lazy-attribute-values"))) {
+            if (tenant != null) {
+                // replaces the unmarshaller of the whole JVM, which would switch all other tenants as well
+                parserContext.getReaderContext().error("lazy-attribute-values cannot be set for a tenant", element);
+            }
+            BeanDefinitionBuilder lazyAttributeBean = BeanDefinitionBuilder.genericBeanDefinition(LazyAttributeUnmarshallerRegistrar.class);
+            lazyAttributeBean.addDependsOn(BEAN_SAMLINITIALIZER);
+            registerShared(element, parserContext, BEAN_LAZYATTRIBUTEUNMARSHALLER, lazyAttributeBean);
+        }
 
-        final BasicParserPool basicParserPool = new BasicParserPool();
-        basicParserPool.setMaxPoolSize(poolSizeInt);
+        BeanDefinitionBuilder parserPoolBuilder = BeanDefinitionBuilder.genericBeanDefinition(BasicParserPool.class);
+        parserPoolBuilder.addPropertyValue("maxPoolSize", poolSizeInt);
+        registerShared(element, parserContext, BEAN_PARSERPOOL, parserPoolBuilder);
 
-        final HTTPPostSimpleSignDecoder httpPostSimpleSignDecoder = new HTTPPostSimpleSignDecoder(basicParserPool);
+        BeanDefinitionBuilder decoderBuilder = BeanDefinitionBuilder.genericBeanDefinition(TransportNeutralHTTPPostSimpleSignDecoder.class);
+        decoderBuilder.addConstructorArgReference(BEAN_PARSERPOOL);
+        registerShared(element, parserContext, BEAN_POSTSIMPLESIGNDECODER, decoderBuilder);
 
-        final VelocityEngineFactoryBean velocityEngineFactoryBean = new VelocityEngineFactoryBean();
-        velocityEngineFactoryBean.setPreferFileSystemAccess(false);
+        BeanDefinitionBuilder velocityEngineBuilder = BeanDefinitionBuilder.genericBeanDefinition(VelocityEngineFactoryBean.class);
+        velocityEngineBuilder.addPropertyValue("preferFileSystemAccess", false);
         Properties velocityEngineProperties = new Properties();
         velocityEngineProperties.setProperty("resource.loader", "classpath");
         velocityEngineProperties.setProperty("classpath.resource.loader.class", "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
-        velocityEngineFactoryBean.setVelocityProperties(velocityEngineProperties);
-        VelocityEngine velocityEngine = null;
-        try {
-            velocityEngine = velocityEngineFactoryBean.createVelocityEngine();
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to create velocity engine instance");
-        }
+        velocityEngineBuilder.addPropertyValue("velocityProperties", velocityEngineProperties);
+        registerShared(element, parserContext, BEAN_VELOCITYENGINE, velocityEngineBuilder);
+
+        registerShared(element, parserContext, BEAN_JCAINSTANCEPOOL, BeanDefinitionBuilder.genericBeanDefinition(JCAInstancePool.class));
 
-        // Replay cache
-        BeanDefinitionBuilder replayCacheBuilder = BeanDefinitionBuilder.genericBeanDefinition(ReplayCache.class);
-        replayCacheBuilder.addConstructorArgValue(new MapBasedStorageService());
+        // Clock shared by the time based rules and caches
+        registerShared(element, parserContext, BEAN_CLOCK, BeanDefinitionBuilder.genericBeanDefinition(CachedClock.class));
+
+        // Replay cache, message IDs are recorded per issuer so the service providers can share it
+        BeanDefinitionBuilder replayCacheBuilder = BeanDefinitionBuilder.genericBeanDefinition(ConcurrentReplayCache.class);
         replayCacheBuilder.addConstructorArgValue(replayCacheDuration);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_REPLAYCACHE, replayCacheBuilder.getBeanDefinition());
+        replayCacheBuilder.addConstructorArgReference(BEAN_CLOCK);
+        registerShared(element, parserContext, BEAN_REPLAYCACHE, replayCacheBuilder);
 
-        // Message replay rule
-        BeanDefinitionBuilder messageReplayRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(MessageReplayRule.class);
-        messageReplayRuleBuilder.addConstructorArgReference(BEAN_REPLAYCACHE);
-        parserContext.getRegistry().registerBeanDefinition("messageReplayRule", messageReplayRuleBuilder.getBeanDefinition());
+        // Outstanding requests, written by the AuthnRequestControllers; request IDs are unique across tenants
+        BeanDefinitionBuilder outstandingRequestStoreBuilder = BeanDefinitionBuilder.genericBeanDefinition(OutstandingRequestStore.class);
+        outstandingRequestStoreBuilder.addConstructorArgValue(outstandingRequestCapacity);
+        outstandingRequestStoreBuilder.addConstructorArgValue(outstandingRequestLifetime * 1000L);
+        outstandingRequestStoreBuilder.addConstructorArgReference(BEAN_CLOCK);
+        registerShared(element, parserContext, BEAN_OUTSTANDINGREQUESTSTORE, outstandingRequestStoreBuilder);
 
         // Issue instant rule
-        BeanDefinitionBuilder issueInstantBuilder = BeanDefinitionBuilder.genericBeanDefinition(IssueInstantRule.class);
+        BeanDefinitionBuilder issueInstantBuilder = BeanDefinitionBuilder.genericBeanDefinition(IssueInstantCheckRule.class);
         issueInstantBuilder.addConstructorArgValue(newClockSkew);
         issueInstantBuilder.addConstructorArgValue(newExpires);
-        parserContext.getRegistry().registerBeanDefinition("issueInstantRule", issueInstantBuilder.getBeanDefinition());
+        issueInstantBuilder.addConstructorArgReference(BEAN_CLOCK);
+        parserContext.getRegistry().registerBeanDefinition(beanName("issueInstantRule"), issueInstantBuilder.getBeanDefinition());
+
+        // Beans that only depend on the certificate store, shared by the tenants that trust the same identity providers
+        final String keyStoreCredentialResolver = trustBeanName(BEAN_KEYSTORECREDENTIALRESOLVER, certificatestoreRef);
+        final String issuerAdmissionRule = trustBeanName(BEAN_ISSUERADMISSIONRULE, certificatestoreRef);
+        final String signatureRule = trustBeanName(BEAN_SIGNATURERULE, certificatestoreRef);
 
         // KeyStore Credential Resolver
         BeanDefinitionBuilder keyStoreBuilder = BeanDefinitionBuilder.genericBeanDefinition(KeyStoreCredentialResolverDelegate.class);
         keyStoreBuilder.addPropertyReference("certificateStore", certificatestoreRef);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_KEYSTORECREDENTIALRESOLVER, keyStoreBuilder.getBeanDefinition());
+        registerShared(element, parserContext, keyStoreCredentialResolver, keyStoreBuilder);
+
+        // Issuer admission rule
+        BeanDefinitionBuilder issuerAdmissionRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(IssuerAdmissionRule.class);
+        BeanDefinitionBuilder failureCacheBuilder = BeanDefinitionBuilder.genericBeanDefinition(DecayingFailureCache.class);
+        failureCacheBuilder.addConstructorArgValue((double) issuerFailureThreshold);
+        failureCacheBuilder.addConstructorArgValue(issuerFailureHalfLife * 1000L);
+        failureCacheBuilder.addConstructorArgValue(issuerFailureCacheSize);
+        failureCacheBuilder.addConstructorArgReference(BEAN_CLOCK);
+        issuerAdmissionRuleBuilder.addConstructorArgValue(failureCacheBuilder.getBeanDefinition());
+        issuerAdmissionRuleBuilder.addPropertyReference("certificateStore", certificatestoreRef);
+        if (StringUtils.isNotBlank(element.getAttribute("client-address-header"))) {
+            issuerAdmissionRuleBuilder.addPropertyValue("clientAddressHeader", element.getAttribute("client-address-header"));
+        }
+        registerShared(element, parserContext, issuerAdmissionRule, issuerAdmissionRuleBuilder);
 
         // Signature Rule Builder
         BeanDefinitionBuilder signatureRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(SignatureSecurityPolicyRule.class);
-        signatureRuleBuilder.addConstructorArgValue(new SAMLSignatureProfileValidator());
-        signatureRuleBuilder.addPropertyReference("credentialResolver", BEAN_KEYSTORECREDENTIALRESOLVER);
+        signatureRuleBuilder.addConstructorArgValue(BeanDefinitionBuilder.genericBeanDefinition(SAMLSignatureProfileValidator.class).getBeanDefinition());
+        signatureRuleBuilder.addPropertyReference("credentialResolver", keyStoreCredentialResolver);
+        signatureRuleBuilder.addPropertyReference("certificateStore", certificatestoreRef);
+        signatureRuleBuilder.addPropertyReference("clock", BEAN_CLOCK);
+        if (StringUtils.isNotBlank(element.getAttribute("parallel-signature-verification"))) {
+            signatureRuleBuilder.addPropertyValue("parallelVerification", Boolean.valueOf(element.getAttribute("parallel-signature-verification")));
+        }
+        final String verificationThreads = element.getAttribute("signature-verification-threads");
+        if (StringUtils.isNotBlank(verificationThreads)) {
+            try {
+                signatureRuleBuilder.addPropertyValue("verificationParallelism", Integer.parseInt(verificationThreads));
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for signature-verification-threads was supplied", element);
+            }
+        }
+        final String verificationQueue = element.getAttribute("signature-verification-queue");
+        if (StringUtils.isNotBlank(verificationQueue)) {
+            try {
+                signatureRuleBuilder.addPropertyValue("verificationQueueCapacity", Integer.parseInt(verificationQueue));
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for signature-verification-queue was supplied", element);
+            }
+        }
 
-        // List of rule beans
-        final ManagedList<BeanMetadataElement> beanMetadataElements = new ManagedList<BeanMetadataElement>();
-        beanMetadataElements.add(signatureRuleBuilder.getBeanDefinition());
-        beanMetadataElements.add(issueInstantBuilder.getBeanDefinition());
-        beanMetadataElements.add(messageReplayRuleBuilder.getBeanDefinition());
+        // Assertion decryption, only when the service provider has a decryption key
+        BeanDefinitionBuilder assertionDecryptionRuleBuilder = null;
+        if (registerServiceProviderKey(element, parserContext, "decryption", beanName(BEAN_DECRYPTIONKEY))) {
+            BeanDefinitionBuilder assertionDecrypterBuilder = BeanDefinitionBuilder.genericBeanDefinition(AssertionDecrypter.class);
+            assertionDecrypterBuilder.addConstructorArgReference(BEAN_JCAINSTANCEPOOL);
+            assertionDecrypterBuilder.addPropertyReference("serviceProviderKey", beanName(BEAN_DECRYPTIONKEY));
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_ASSERTIONDECRYPTER), assertionDecrypterBuilder.getBeanDefinition());
+
+            assertionDecryptionRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(AssertionDecryptionRule.class);
+            assertionDecryptionRuleBuilder.addConstructorArgReference(beanName(BEAN_ASSERTIONDECRYPTER));
+        }
+
+        // Rules shared by the security policies of all identity providers
+        registerShared(element, parserContext, signatureRule, signatureRuleBuilder);
+        final boolean decryption = assertionDecryptionRuleBuilder != null;
+        if (decryption) {
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_ASSERTIONDECRYPTIONRULE), assertionDecryptionRuleBuilder.getBeanDefinition());
+        }
 
-        // Security Policy
+        // Security Policy, for the identity providers without a policy of their own
         BeanDefinitionBuilder securityPolicyDelegateBuilder = BeanDefinitionBuilder.genericBeanDefinition(SecurityPolicyDelegate.class);
-        securityPolicyDelegateBuilder.addConstructorArgValue(beanMetadataElements);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_SECURITYPOLICY, securityPolicyDelegateBuilder.getBeanDefinition());
+        securityPolicyDelegateBuilder.addConstructorArgValue(securityPolicyRules(element, element, decryption,
+                issuerAdmissionRule, signatureRule, issueInstantBuilder.getBeanDefinition(), BEAN_REPLAYCACHE));
+        parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_SECURITYPOLICY), securityPolicyDelegateBuilder.getBeanDefinition());
+
+        // Security Policies of the identity providers configured with an identity-provider element
+        final ManagedMap<String, BeanMetadataElement> securityPoliciesByIssuer = new ManagedMap<String, BeanMetadataElement>();
+        for (Element identityProvider : DomUtils.getChildElementsByTagName(element, "identity-provider")) {
+            final String issuer = identityProvider.getAttribute("entity-id");
+            if (StringUtils.isBlank(issuer)) {
+                parserContext.getReaderContext().error("The entity-id of an identity-provider is mandatory", identityProvider);
+                continue;
+            }
+            if (securityPoliciesByIssuer.containsKey(issuer)) {
+                parserContext.getReaderContext().error("Duplicate identity-provider " + issuer, identityProvider);
+                continue;
+            }
+
+            int idpClockSkew = newClockSkew;
+            final String idpClockSkewAttribute = identityProvider.getAttribute("clock-skew-in-secs");
+            if (StringUtils.isNotBlank(idpClockSkewAttribute)) {
+                try {
+                    idpClockSkew = Integer.parseInt(idpClockSkewAttribute);
+                } catch(NumberFormatException nfe) {
+                    parserContext.getReaderContext().error("An invalid value for clock-skew-in-secs was supplied", identityProvider);
+                }
+            }
+
+            int idpExpires = newExpires;
+            final String idpValidTime = identityProvider.getAttribute("valid-time-in-secs");
+            if (StringUtils.isNotBlank(idpValidTime)) {
+                try {
+                    idpExpires = Integer.parseInt(idpValidTime);
+                } catch(NumberFormatException nfe) {
+                    parserContext.getReaderContext().error("An invalid value for valid-time-in-secs was supplied", identityProvider);
+                }
+            }
+
+            BeanDefinitionBuilder idpIssueInstantBuilder = BeanDefinitionBuilder.genericBeanDefinition(IssueInstantCheckRule.class);
+            idpIssueInstantBuilder.addConstructorArgValue(idpClockSkew);
+            idpIssueInstantBuilder.addConstructorArgValue(idpExpires);
+            idpIssueInstantBuilder.addConstructorArgReference(BEAN_CLOCK);
+
+            // a replay cache of its own only when the identity provider has its own replay window
+            String idpReplayCache = BEAN_REPLAYCACHE;
+            final String idpReplayCacheLife = identityProvider.getAttribute("replay-cache-life-in-millis");
+            if (StringUtils.isNotBlank(idpReplayCacheLife)) {
+                try {
+                    BeanDefinitionBuilder idpReplayCacheBuilder = BeanDefinitionBuilder.genericBeanDefinition(ConcurrentReplayCache.class);
+                    idpReplayCacheBuilder.addConstructorArgValue(Long.parseLong(idpReplayCacheLife));
+                    idpReplayCacheBuilder.addConstructorArgReference(BEAN_CLOCK);
+                    idpReplayCache = beanName(BEAN_REPLAYCACHE + "." + issuer);
+                    parserContext.getRegistry().registerBeanDefinition(idpReplayCache, idpReplayCacheBuilder.getBeanDefinition());
+                } catch(NumberFormatException nfe) {
+                    parserContext.getReaderContext().error("An invalid value for replay-cache-life-in-millis was supplied", identityProvider);
+                }
+            }
+
+            BeanDefinitionBuilder idpSecurityPolicyBuilder = BeanDefinitionBuilder.genericBeanDefinition(SecurityPolicyDelegate.class);
+            idpSecurityPolicyBuilder.addConstructorArgValue(securityPolicyRules(identityProvider, element, decryption,
+                    issuerAdmissionRule, signatureRule, idpIssueInstantBuilder.getBeanDefinition(), idpReplayCache));
+            securityPoliciesByIssuer.put(issuer, idpSecurityPolicyBuilder.getBeanDefinition());
+        }
 
-        // Security Policy Resolver
-        BeanDefinitionBuilder securityPolicyResolverBuilder = BeanDefinitionBuilder.genericBeanDefinition(StaticSecurityPolicyResolver.class);
-        securityPolicyResolverBuilder.addConstructorArgReference(BEAN_SECURITYPOLICY);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_SECURITYPOLICYRESOLVER, securityPolicyResolverBuilder.getBeanDefinition());
+        // Security Policy Resolver, selects the policy by the issuer of the inbound message
+        BeanDefinitionBuilder securityPolicyResolverBuilder = BeanDefinitionBuilder.genericBeanDefinition(IssuerSecurityPolicyResolver.class);
+        securityPolicyResolverBuilder.addConstructorArgReference(beanName(BEAN_SECURITYPOLICY));
+        securityPolicyResolverBuilder.addConstructorArgValue(securityPoliciesByIssuer);
+        parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_SECURITYPOLICYRESOLVER), securityPolicyResolverBuilder.getBeanDefinition());
 
         // Message Handler
         BeanDefinitionBuilder postBindingAdapter = BeanDefinitionBuilder
                 .rootBeanDefinition(SAMLMessageHandlerImpl.class);
-        postBindingAdapter.addConstructorArgValue(httpPostSimpleSignDecoder);
-        postBindingAdapter.addConstructorArgReference(BEAN_SECURITYPOLICYRESOLVER);
-        postBindingAdapter.addPropertyValue("velocityEngine", velocityEngine);
+        postBindingAdapter.addConstructorArgReference(BEAN_POSTSIMPLESIGNDECODER);
+        postBindingAdapter.addConstructorArgReference(beanName(BEAN_SECURITYPOLICYRESOLVER));
+        postBindingAdapter.addPropertyReference("velocityEngine", BEAN_VELOCITYENGINE);
         postBindingAdapter.addPropertyValue("entityId", entityID);
+        if (StringUtils.isNotBlank(element.getAttribute("authn-request-binding"))) {
+            postBindingAdapter.addPropertyValue("binding", element.getAttribute("authn-request-binding"));
+        }
+        // AuthnRequest signing, only when the service provider has a signing key
+        final String messageSigner = beanName(BEAN_MESSAGESIGNER);
+        if (registerServiceProviderKey(element, parserContext, "signing", beanName(BEAN_SIGNINGKEY))) {
+            BeanDefinitionBuilder messageSignerBuilder = BeanDefinitionBuilder.genericBeanDefinition(MessageSigner.class);
+            messageSignerBuilder.addConstructorArgReference(BEAN_JCAINSTANCEPOOL);
+            messageSignerBuilder.addPropertyReference("serviceProviderKey", beanName(BEAN_SIGNINGKEY));
+            messageSignerBuilder.addPropertyValue("entityID", entityID);
+            if (StringUtils.isNotBlank(element.getAttribute("signature-algorithm"))) {
+                messageSignerBuilder.addPropertyValue("signatureAlgorithmURI", element.getAttribute("signature-algorithm"));
+            }
+            parserContext.getRegistry().registerBeanDefinition(messageSigner, messageSignerBuilder.getBeanDefinition());
+            postBindingAdapter.addPropertyReference("messageSigner", messageSigner);
+        }
+        // HTTP-Artifact binding, only when the Artifact Resolution Services are known
+        final String artifactResolutionServicesRef = element.getAttribute("artifact-resolution-services-ref");
+        if (StringUtils.isNotBlank(artifactResolutionServicesRef)) {
+            BeanDefinitionBuilder artifactResolver = BeanDefinitionBuilder.genericBeanDefinition(ArtifactResolver.class);
+            artifactResolver.addConstructorArgReference(BEAN_PARSERPOOL);
+            artifactResolver.addPropertyValue("entityID", entityID);
+            artifactResolver.addPropertyReference("artifactResolutionServiceURLs", artifactResolutionServicesRef);
+            artifactResolver.addPropertyReference("clock", BEAN_CLOCK);
+            artifactResolver.addPropertyValue("maxConnectionsPerHost", artifactResolutionConnections);
+            artifactResolver.addPropertyValue("timeout", artifactResolutionTimeout);
+            if (parserContext.getRegistry().containsBeanDefinition(messageSigner)) {
+                artifactResolver.addPropertyReference("messageSigner", messageSigner);
+            }
+            artifactResolver.addDependsOn(BEAN_SAMLINITIALIZER);
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_ARTIFACTRESOLVER), artifactResolver.getBeanDefinition());
+
+            BeanDefinitionBuilder artifactDecoder = BeanDefinitionBuilder.genericBeanDefinition(HTTPArtifactResolvingDecoder.class);
+            artifactDecoder.addConstructorArgReference(beanName(BEAN_ARTIFACTRESOLVER));
+            postBindingAdapter.addPropertyValue("artifactDecoder", artifactDecoder.getBeanDefinition());
+        }
         parserContext.getRegistry().registerBeanDefinition(messageHandlerRef, postBindingAdapter.getBeanDefinition());
 
         // Assertion Consumer Bean
         BeanDefinitionBuilder assertionComsumerBean = BeanDefinitionBuilder.genericBeanDefinition(AssertionConsumerImpl.class);
         assertionComsumerBean.addPropertyReference("provisioner", provisionerRef);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_ASSERTIONCONSUMER, assertionComsumerBean.getBeanDefinition());
+        parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_ASSERTIONCONSUMER), assertionComsumerBean.getBeanDefinition());
 
         BeanDefinitionBuilder authenticationProvider = BeanDefinitionBuilder
                 .rootBeanDefinition(SAMLResponseAuthenticationProvider.class);
-        authenticationProvider.addConstructorArgReference(BEAN_ASSERTIONCONSUMER);
-        parserContext.getRegistry().registerBeanDefinition(BEAN_AUTHENTICATIONPROVIDER, authenticationProvider.getBeanDefinition());
+        authenticationProvider.addConstructorArgReference(beanName(BEAN_ASSERTIONCONSUMER));
+        parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_AUTHENTICATIONPROVIDER), authenticationProvider.getBeanDefinition());
 
         // Pre Auth Filter
-        final HttpSessionRequestCache requestCache = new HttpSessionRequestCache();
-        final AuthenticationFailureHandlerImpl authenticationFailureHandler = new AuthenticationFailureHandlerImpl(requestCache);
+        BeanDefinitionBuilder authenticationSuccessHandler = null;
+        BeanDefinitionBuilder authenticationFailureHandler = BeanDefinitionBuilder.genericBeanDefinition(AuthenticationFailureHandlerImpl.class);
+        if (Boolean.valueOf(element.getAttribute("stateless-relay-state"))) {
+            BeanDefinitionBuilder relayStateCodec = BeanDefinitionBuilder.genericBeanDefinition(RelayStateCodec.class);
+            relayStateCodec.addConstructorArgReference(BEAN_JCAINSTANCEPOOL);
+            if (StringUtils.isNotBlank(element.getAttribute("relay-state-secret"))) {
+                relayStateCodec.addPropertyValue("secret", element.getAttribute("relay-state-secret"));
+            }
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_RELAYSTATECODEC), relayStateCodec.getBeanDefinition());
+
+            BeanDefinitionBuilder requestCache = BeanDefinitionBuilder.genericBeanDefinition(RelayStateRequestCache.class);
+            requestCache.addConstructorArgReference(beanName(BEAN_RELAYSTATECODEC));
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_REQUESTCACHE), requestCache.getBeanDefinition());
+
+            authenticationFailureHandler.addConstructorArgReference(beanName(BEAN_REQUESTCACHE));
+            authenticationSuccessHandler = BeanDefinitionBuilder.genericBeanDefinition(SavedRequestAwareAuthenticationSuccessHandler.class);
+            authenticationSuccessHandler.addPropertyReference("requestCache", beanName(BEAN_REQUESTCACHE));
+        } else {
+            authenticationFailureHandler.addConstructorArgValue(new HttpSessionRequestCache());
+        }
 
         // Authentication Filter
         BeanDefinitionBuilder authenticationFilter = BeanDefinitionBuilder
@@ -224,9 +658,244 @@ public class ServiceProviderBeanDefinitionParser extends AbstractBeanDefinitionP
         authenticationFilter.addConstructorArgValue(assertionConsumerURI);
         authenticationFilter.addPropertyReference("SAMLMessageHandler", messageHandlerRef);
         authenticationFilter.addPropertyReference("authenticationManager", authenticationManangerRef);
-        authenticationFilter.addPropertyValue("authenticationFailureHandler", authenticationFailureHandler);
+        final String retryLimit = element.getAttribute("idp-retry-limit");
+        if (StringUtils.isNotBlank(retryLimit)) {
+            BeanDefinitionBuilder retryBudget = BeanDefinitionBuilder.genericBeanDefinition(DecayingFailureCache.class);
+            try {
+                retryBudget.addConstructorArgValue(Double.parseDouble(retryLimit));
+                authenticationFailureHandler.addPropertyValue("maxRetries", Integer.parseInt(retryLimit));
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for idp-retry-limit was supplied", element);
+            }
+            retryBudget.addConstructorArgValue(RETRY_BUDGET_HALF_LIFE);
+            retryBudget.addConstructorArgValue(issuerFailureCacheSize);
+            retryBudget.addConstructorArgReference(BEAN_CLOCK);
+            authenticationFailureHandler.addPropertyValue("retryBudget", retryBudget.getBeanDefinition());
+            authenticationFailureHandler.addPropertyValue("initialBackoff", (long) retryBackoff);
+        }
+        final String idpFailureThreshold = element.getAttribute("idp-failure-threshold");
+        if (StringUtils.isNotBlank(idpFailureThreshold)) {
+            BeanDefinitionBuilder idpFailures = BeanDefinitionBuilder.genericBeanDefinition(DecayingFailureCache.class);
+            try {
+                idpFailures.addConstructorArgValue(Double.parseDouble(idpFailureThreshold));
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for idp-failure-threshold was supplied", element);
+            }
+            idpFailures.addConstructorArgValue(idpFailureHalfLife * 1000L);
+            idpFailures.addConstructorArgValue(issuerFailureCacheSize);
+            idpFailures.addConstructorArgReference(BEAN_CLOCK);
+            BeanDefinitionBuilder circuitBreaker = BeanDefinitionBuilder.genericBeanDefinition(IdentityProviderCircuitBreaker.class);
+            circuitBreaker.addConstructorArgValue(idpFailures.getBeanDefinition());
+            registerShared(element, parserContext, BEAN_IDPCIRCUITBREAKER, circuitBreaker);
+            authenticationFailureHandler.addPropertyReference("circuitBreaker", BEAN_IDPCIRCUITBREAKER);
+        }
+        if (StringUtils.isNotBlank(element.getAttribute("authentication-error-page"))) {
+            authenticationFailureHandler.addPropertyValue("errorPage", element.getAttribute("authentication-error-page"));
+        }
+        parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_AUTHENTICATIONFAILUREHANDLER), authenticationFailureHandler.getBeanDefinition());
+        authenticationFilter.addPropertyReference("authenticationFailureHandler", beanName(BEAN_AUTHENTICATIONFAILUREHANDLER));
+        if (Boolean.valueOf(element.getAttribute("authentication-cookie"))) {
+            final String cookieSecret = element.getAttribute("authentication-cookie-secret");
+            if (StringUtils.isBlank(cookieSecret)) {
+                parserContext.getReaderContext().error("The authentication-cookie-secret is mandatory when authentication-cookie is enabled", element);
+            }
+            BeanDefinitionBuilder tokenSealer = BeanDefinitionBuilder.genericBeanDefinition(TokenSealer.class);
+            tokenSealer.addConstructorArgReference(BEAN_JCAINSTANCEPOOL);
+            tokenSealer.addPropertyValue("secret", cookieSecret);
+            tokenSealer.addPropertyValue("encrypt", Boolean.valueOf(element.getAttribute("authentication-cookie-encrypted")));
+
+            BeanDefinitionBuilder authenticationCookies = BeanDefinitionBuilder.genericBeanDefinition(AuthenticationCookies.class);
+            authenticationCookies.addConstructorArgValue(tokenSealer.getBeanDefinition());
+            if (StringUtils.isNotBlank(element.getAttribute("authentication-cookie-name"))) {
+                authenticationCookies.addPropertyValue("cookieName", element.getAttribute("authentication-cookie-name"));
+            }
+            authenticationCookies.addPropertyValue("lifetime", authenticationCookieLifetime);
+            authenticationCookies.addPropertyReference("clock", BEAN_CLOCK);
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_AUTHENTICATIONCOOKIES), authenticationCookies.getBeanDefinition());
+
+            BeanDefinitionBuilder cookieFilter = BeanDefinitionBuilder.genericBeanDefinition(CookieAuthenticationFilter.class);
+            cookieFilter.addConstructorArgReference(beanName(BEAN_AUTHENTICATIONCOOKIES));
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_COOKIEAUTHENTICATIONFILTER), cookieFilter.getBeanDefinition());
+
+            if (authenticationSuccessHandler == null) {
+                authenticationSuccessHandler = BeanDefinitionBuilder.genericBeanDefinition(SavedRequestAwareAuthenticationSuccessHandler.class);
+            }
+            BeanDefinitionBuilder cookieSuccessHandler = BeanDefinitionBuilder.genericBeanDefinition(CookieAuthenticationSuccessHandler.class);
+            cookieSuccessHandler.addConstructorArgReference(beanName(BEAN_AUTHENTICATIONCOOKIES));
+            cookieSuccessHandler.addConstructorArgValue(authenticationSuccessHandler.getBeanDefinition());
+            authenticationSuccessHandler = cookieSuccessHandler;
+        }
+        if (authenticationSuccessHandler != null) {
+            authenticationFilter.addPropertyValue("authenticationSuccessHandler", authenticationSuccessHandler.getBeanDefinition());
+        }
+        if (StringUtils.isNotBlank(element.getAttribute("release-dom-after-verification"))) {
+            authenticationFilter.addPropertyValue("releaseDOM", Boolean.valueOf(element.getAttribute("release-dom-after-verification")));
+        }
+        if (Boolean.valueOf(element.getAttribute("async-authentication"))) {
+            BeanDefinitionBuilder authenticationExecutor = BeanDefinitionBuilder.genericBeanDefinition(ThreadPoolTaskExecutor.class);
+            authenticationExecutor.addPropertyValue("corePoolSize", authenticationThreads);
+            authenticationExecutor.addPropertyValue("maxPoolSize", authenticationThreads);
+            authenticationExecutor.addPropertyValue("queueCapacity", authenticationQueueCapacity);
+            authenticationExecutor.addPropertyValue("threadNamePrefix", "saml-authentication-");
+            registerShared(element, parserContext, BEAN_AUTHENTICATIONEXECUTOR, authenticationExecutor);
+            authenticationFilter.addPropertyReference("authenticationExecutor", BEAN_AUTHENTICATIONEXECUTOR);
+            authenticationFilter.addPropertyValue("asyncTimeout", asyncAuthenticationTimeout * 1000L);
+        }
+        final String maxConcurrent = element.getAttribute("max-concurrent-authentications");
+        if (StringUtils.isNotBlank(maxConcurrent)) {
+            BeanDefinitionBuilder concurrencyLimiter = BeanDefinitionBuilder.genericBeanDefinition(ConcurrencyLimiter.class);
+            try {
+                concurrencyLimiter.addConstructorArgValue(Integer.parseInt(maxConcurrent));
+            } catch(NumberFormatException nfe) {
+                parserContext.getReaderContext().error("An invalid value for max-concurrent-authentications was supplied", element);
+            }
+            concurrencyLimiter.addConstructorArgValue(admissionQueueSize);
+            concurrencyLimiter.addConstructorArgValue((long) admissionQueueTimeout);
+            concurrencyLimiter.addPropertyValue("adaptive", Boolean.valueOf(element.getAttribute("adaptive-concurrency-limit")));
+            concurrencyLimiter.addPropertyValue("targetLatency", (long) targetAuthenticationLatency);
+            registerShared(element, parserContext, BEAN_CONCURRENCYLIMITER, concurrencyLimiter);
+            authenticationFilter.addPropertyReference("concurrencyLimiter", BEAN_CONCURRENCYLIMITER);
+            authenticationFilter.addPropertyValue("retryAfter", retryAfter);
+        }
+        if (Boolean.valueOf(element.getAttribute("coalesce-duplicate-responses"))) {
+            BeanDefinitionBuilder singleFlight = BeanDefinitionBuilder.genericBeanDefinition(SingleFlight.class);
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_SINGLEFLIGHT), singleFlight.getBeanDefinition());
+            authenticationFilter.addPropertyReference("singleFlight", beanName(BEAN_SINGLEFLIGHT));
+        }
+        if (Boolean.valueOf(element.getAttribute("single-logout"))) {
+            BeanDefinitionBuilder sessionIndex = BeanDefinitionBuilder.genericBeanDefinition(SessionIndex.class);
+            sessionIndex.addConstructorArgValue(maxIndexedSessions);
+            parserContext.getRegistry().registerBeanDefinition(beanName(BEAN_SESSIONINDEX), sessionIndex.getBeanDefinition());
+            authenticationFilter.addPropertyReference("sessionIndex", beanName(BEAN_SESSIONINDEX));
+        }
         parserContext.getRegistry().registerBeanDefinition(preAuthFilterRef, authenticationFilter.getBeanDefinition());
 
+        // Tenants are routed to their filter by the URL of their assertion consumer
+        if (tenant != null) {
+            if (!parserContext.getRegistry().containsBeanDefinition(BEAN_SERVICEPROVIDERROUTER)) {
+                BeanDefinitionBuilder router = BeanDefinitionBuilder.genericBeanDefinition(ServiceProviderRoutingFilter.class);
+                router.addPropertyValue("filters", new ManagedMap<String, BeanMetadataElement>());
+                parserContext.getRegistry().registerBeanDefinition(BEAN_SERVICEPROVIDERROUTER, router.getBeanDefinition());
+            }
+            @SuppressWarnings("unchecked")
+            final Map<String, BeanMetadataElement> filters = (Map<String, BeanMetadataElement>) parserContext.getRegistry()
+                    .getBeanDefinition(BEAN_SERVICEPROVIDERROUTER).getPropertyValues().getPropertyValue("filters").getValue();
+            if (filters.containsKey(assertionConsumerURI)) {
+                parserContext.getReaderContext().error("The assertion-consumer-uri of a tenant has to be unique", element);
+            }
+            filters.put(assertionConsumerURI, new RuntimeBeanReference(preAuthFilterRef));
+        }
+
         return authenticationProvider.getBeanDefinition();
     }
+
+    /**
+     * The rules of a security policy, the security policy orders them by cost. Rules that are switched on or off
+     * by an attribute take the attribute of the element, or else that of the service-provider element, so an
+     * identity-provider element only lists what differs from the defaults.
+     */
+    private ManagedList<BeanMetadataElement> securityPolicyRules(final Element element, final Element serviceProvider,
+                                                                final boolean decryption,
+                                                                final String issuerAdmissionRule,
+                                                                final String signatureRule,
+                                                                final BeanMetadataElement issueInstantRule,
+                                                                final String replayCacheRef) {
+        final ManagedList<BeanMetadataElement> beanMetadataElements = new ManagedList<BeanMetadataElement>();
+        beanMetadataElements.add(new RuntimeBeanReference(issuerAdmissionRule));
+        if (decryption) {
+            // before the signature rule, which verifies the decrypted assertions as well
+            beanMetadataElements.add(new RuntimeBeanReference(beanName(BEAN_ASSERTIONDECRYPTIONRULE)));
+        }
+        if (Boolean.valueOf(attributeOf(element, serviceProvider, "want-assertions-signed"))) {
+            // after decryption, before the signatures are verified
+            beanMetadataElements.add(BeanDefinitionBuilder.genericBeanDefinition(WantAssertionsSignedRule.class).getBeanDefinition());
+        }
+        beanMetadataElements.add(new RuntimeBeanReference(signatureRule));
+        beanMetadataElements.add(issueInstantRule);
+
+        // the lookup runs before and the record after signature verification
+        BeanDefinitionBuilder messageReplayLookupRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(MessageReplayLookupRule.class);
+        messageReplayLookupRuleBuilder.addConstructorArgReference(replayCacheRef);
+        beanMetadataElements.add(messageReplayLookupRuleBuilder.getBeanDefinition());
+
+        BeanDefinitionBuilder messageReplayRecordRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(MessageReplayRecordRule.class);
+        messageReplayRecordRuleBuilder.addConstructorArgReference(replayCacheRef);
+        beanMetadataElements.add(messageReplayRecordRuleBuilder.getBeanDefinition());
+
+        if (Boolean.valueOf(attributeOf(element, serviceProvider, "check-in-response-to"))) {
+            BeanDefinitionBuilder inResponseToLookupRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(InResponseToLookupRule.class);
+            inResponseToLookupRuleBuilder.addConstructorArgReference(BEAN_OUTSTANDINGREQUESTSTORE);
+            final String allowUnsolicited = attributeOf(element, serviceProvider, "allow-unsolicited-responses");
+            if (StringUtils.isNotBlank(allowUnsolicited)) {
+                inResponseToLookupRuleBuilder.addPropertyValue("allowUnsolicited", Boolean.valueOf(allowUnsolicited));
+            }
+            beanMetadataElements.add(inResponseToLookupRuleBuilder.getBeanDefinition());
+
+            BeanDefinitionBuilder inResponseToConsumeRuleBuilder = BeanDefinitionBuilder.genericBeanDefinition(InResponseToConsumeRule.class);
+            inResponseToConsumeRuleBuilder.addConstructorArgReference(BEAN_OUTSTANDINGREQUESTSTORE);
+            beanMetadataElements.add(inResponseToConsumeRuleBuilder.getBeanDefinition());
+        }
+        return beanMetadataElements;
+    }
+
+    /**
+     * @return the name of a bean of this service provider, with the tenant as suffix when it has one
+     */
+    private String beanName(final String name) {
+        return tenant == null ? name : name + "." + tenant;
+    }
+
+    /**
+     * @return the name of a bean that only depends on the certificate store, with the certificate store as suffix
+     *         for tenants, so that tenants with the same certificate store share it
+     */
+    private String trustBeanName(final String name, final String certificatestoreRef) {
+        return tenant == null ? name : name + "." + certificatestoreRef;
+    }
+
+    /**
+     * Registers a bean that all service providers share, unless an earlier service-provider element has
+     * registered it already. A tenant cannot configure a shared bean differently from the element that registered
+     * it, as its settings would silently be ignored.
+     */
+    private static void registerShared(final Element element, final ParserContext parserContext, final String name,
+                                       final BeanDefinitionBuilder builder) {
+        if (!parserContext.getRegistry().containsBeanDefinition(name)) {
+            parserContext.getRegistry().registerBeanDefinition(name, builder.getBeanDefinition());
+        } else if (!parserContext.getRegistry().getBeanDefinition(name).equals(builder.getBeanDefinition())) {
+            parserContext.getReaderContext().error("The settings of " + name
+                    + " are shared by all service providers and differ from those of an earlier service-provider", element);
+        }
+    }
+
+    private static String attributeOf(final Element element, final Element serviceProvider, final String name) {
+        return element.hasAttribute(name) ? element.getAttribute(name) : serviceProvider.getAttribute(name);
+    }
+
+    /**
+     * Registers a {@link ServiceProviderKey} from the &lt;purpose&gt;-keystore, -keystore-password, -key-alias and
+     * -key-password attributes.
+     *
+     * @return whether the element has a keystore for the purpose
+     */
+    private boolean registerServiceProviderKey(final Element element, final ParserContext parserContext,
+                                               final String purpose, final String beanName) {
+        final String keystore = element.getAttribute(purpose + "-keystore");
+        if (StringUtils.isBlank(keystore)) {
+            return false;
+        }
+        final String keyAlias = element.getAttribute(purpose + "-key-alias");
+        if (StringUtils.isBlank(keyAlias)) {
+            parserContext.getReaderContext().error("The " + purpose + "-key-alias is mandatory when a " + purpose + "-keystore is configured", element);
+        }
+        BeanDefinitionBuilder keyBuilder = BeanDefinitionBuilder.genericBeanDefinition(ServiceProviderKey.class);
+        keyBuilder.addPropertyValue("keyStoreLocation", keystore);
+        keyBuilder.addPropertyValue("keyStorePassword", element.getAttribute(purpose + "-keystore-password"));
+        keyBuilder.addPropertyValue("keyAlias", keyAlias);
+        if (StringUtils.isNotBlank(element.getAttribute(purpose + "-key-password"))) {
+            keyBuilder.addPropertyValue("keyPassword", element.getAttribute(purpose + "-key-password"));
+        }
+        parserContext.getRegistry().registerBeanDefinition(beanName, keyBuilder.getBeanDefinition());
+        return true;
+    }
 }
@@ -25,10 +25,7 @@ import org.opensaml.saml2.core.AuthnRequest;
 import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.saml2.metadata.SingleSignOnService;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
-import org.opensaml.xml.security.CriteriaSet;
-import org.opensaml.xml.security.credential.UsageType;
-import org.opensaml.xml.security.criteria.EntityIDCriteria;
-import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
@@ -39,7 +36,11 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import nl.surfnet.spring.security.opensaml.AuthnRequestGenerator;
 import nl.surfnet.spring.security.opensaml.SAMLMessageHandler;
+import nl.surfnet.spring.security.opensaml.crypt.RelayStateCodec;
+import nl.surfnet.spring.security.opensaml.util.Clock;
 import nl.surfnet.spring.security.opensaml.util.IDService;
+import nl.surfnet.spring.security.opensaml.util.IdentityProviderCircuitBreaker;
+import nl.surfnet.spring.security.opensaml.util.OutstandingRequestStore;
 import nl.surfnet.spring.security.opensaml.util.TimeService;
 import nl.surfnet.spring.security.opensaml.xml.EndpointGenerator;
 
@@ -47,7 +48,7 @@ import nl.surfnet.spring.security.opensaml.xml.EndpointGenerator;
 public class AuthnRequestController {
     private final static Logger log = LoggerFactory.getLogger(AuthnRequestController.class);
 
-    private final TimeService timeService;
+    private TimeService timeService;
     private final IDService idService;
 
     private SAMLMessageHandler samlMessageHandler;
@@ -56,11 +57,26 @@ public class AuthnRequestController {
 
     private String entityID;
 
+    private OutstandingRequestStore outstandingRequestStore;
+
+    private RelayStateCodec relayStateCodec;
+
+    private IdentityProviderCircuitBreaker identityProviderCircuitBreaker;
+
+    private String protocolBinding;
+
     public AuthnRequestController() {
         this.timeService = new TimeService();
         this.idService = new IDService();
     }
 
+    /**
+     * @param clock the clock the issue instants of the requests are taken from, for instance the samlClock bean
+     */
+    public void setClock(Clock clock) {
+        this.timeService = new TimeService(clock);
+    }
+
     @Required
     public void setSAMLMessageHandler(SAMLMessageHandler samlMessageHandler) {
         this.samlMessageHandler = samlMessageHandler;
@@ -76,27 +92,76 @@ public class AuthnRequestController {
         this.entityID = entityID;
     }
 
+    /**
+     * @param outstandingRequestStore the store the IDs of the sent requests are recorded in, to correlate the
+     *                                InResponseTo of the responses
+     */
+    public void setOutstandingRequestStore(final OutstandingRequestStore outstandingRequestStore) {
+        this.outstandingRequestStore = outstandingRequestStore;
+    }
+
+    /**
+     * @param relayStateCodec the codec the returnTo parameter is put in the RelayState with, for use with the
+     *                        RelayStateRequestCache
+     */
+    public void setRelayStateCodec(final RelayStateCodec relayStateCodec) {
+        this.relayStateCodec = relayStateCodec;
+    }
+
+    /**
+     * @param identityProviderCircuitBreaker the circuit breaker that keeps users from being sent to failing
+     *                                       identity providers
+     */
+    public void setIdentityProviderCircuitBreaker(final IdentityProviderCircuitBreaker identityProviderCircuitBreaker) {
+        this.identityProviderCircuitBreaker = identityProviderCircuitBreaker;
+    }
+
+    /**
+     * @param protocolBinding the binding the identity provider is asked to send the Response with, for instance
+     *                        <code>urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Artifact</code>
+     */
+    public void setProtocolBinding(final String protocolBinding) {
+        this.protocolBinding = protocolBinding;
+    }
+
     @RequestMapping(value = {"/OpenSAML.sso/Login"}, method = RequestMethod.GET)
     public void commence(
             @RequestParam(value="target") String target,
+            @RequestParam(value="returnTo", required=false) String returnTo,
             HttpServletRequest request,
             HttpServletResponse response) throws IOException {
 
+        if (identityProviderCircuitBreaker != null && identityProviderCircuitBreaker.refuse(target)) {
+            log.warn("Not sending authnRequest to failing Identity Provider {}", target);
+            response.setHeader("Retry-After", "60");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
         AuthnRequestGenerator authnRequestGenerator = new AuthnRequestGenerator(entityID, timeService, idService);
         EndpointGenerator endpointGenerator = new EndpointGenerator();
 
         Endpoint endpoint = endpointGenerator.generateEndpoint(SingleSignOnService.DEFAULT_ELEMENT_NAME, target, assertionConsumerServiceURL);
 
-        AuthnRequest authnReqeust = authnRequestGenerator.generateAuthnRequest(target, assertionConsumerServiceURL);
+        AuthnRequest authnReqeust = authnRequestGenerator.generateAuthnRequest(target, assertionConsumerServiceURL, protocolBinding);
 
         log.debug("Sending authnRequest to {}", target);
 
-        try {
-            CriteriaSet criteriaSet = new CriteriaSet();
-            criteriaSet.add(new EntityIDCriteria(entityID));
-            criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
+        if (outstandingRequestStore != null) {
+            outstandingRequestStore.add(authnReqeust.getID());
+        }
 
-            samlMessageHandler.sendSAMLMessage(authnReqeust, endpoint, response);
+        String relayState = null;
+        if (relayStateCodec != null && returnTo != null) {
+            if (RelayStateCodec.isContextRelative(returnTo)) {
+                relayState = relayStateCodec.encode(returnTo);
+            } else {
+                log.warn("Ignoring returnTo that is not relative to the context root: {}", returnTo);
+            }
+        }
+
+        try {
+            samlMessageHandler.sendSAMLMessage(authnReqeust, endpoint, new HttpServletResponseAdapter(response, false), relayState);
         } catch (MessageEncodingException mee) {
             log.error("Could not send authnRequest to Identity Provider.", mee);
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.saml2.core.LogoutRequest;
+import org.opensaml.saml2.core.LogoutResponse;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import nl.surfnet.spring.security.opensaml.AuthenticationCookies;
+import nl.surfnet.spring.security.opensaml.LogoutMessageGenerator;
+import nl.surfnet.spring.security.opensaml.SAMLAuthenticationToken;
+import nl.surfnet.spring.security.opensaml.SAMLMessageHandler;
+import nl.surfnet.spring.security.opensaml.SAMLSessionKey;
+import nl.surfnet.spring.security.opensaml.SessionIndex;
+import nl.surfnet.spring.security.opensaml.util.Clock;
+import nl.surfnet.spring.security.opensaml.util.IDService;
+import nl.surfnet.spring.security.opensaml.util.OutstandingRequestStore;
+import nl.surfnet.spring.security.opensaml.util.TimeService;
+import nl.surfnet.spring.security.opensaml.xml.EndpointGenerator;
+
+/**
+ * SAML 2.0 Single Logout, initiated by the user at <code>/OpenSAML.sso/Logout</code> and by the identity provider
+ * at <code>/OpenSAML.sso/SingleLogout</code>.
+ * <p/>
+ * A LogoutRequest of an identity provider goes through the security policy of the service provider, like a
+ * Response does, after which the sessions it is about are looked up in the {@link SessionIndex} and invalidated.
+ * <p/>
+ * Logins kept in an authentication cookie are not in the {@link SessionIndex}: a LogoutRequest of the identity
+ * provider does not reach them and they stay valid until the cookie expires. A logout by the user removes the cookie.
+ */
+@Controller
+public class SingleLogoutController {
+    private final static Logger log = LoggerFactory.getLogger(SingleLogoutController.class);
+
+    private TimeService timeService;
+    private final IDService idService;
+
+    private SAMLMessageHandler samlMessageHandler;
+
+    private String entityID;
+
+    private SessionIndex sessionIndex;
+
+    private OutstandingRequestStore outstandingRequestStore;
+
+    private AuthenticationCookies authenticationCookies;
+
+    private Map<String, String> singleLogoutServiceURLs = new HashMap<String, String>();
+
+    private String logoutSuccessURL = "/";
+
+    public SingleLogoutController() {
+        this.timeService = new TimeService();
+        this.idService = new IDService();
+    }
+
+    public void setClock(Clock clock) {
+        this.timeService = new TimeService(clock);
+    }
+
+    @Required
+    public void setSAMLMessageHandler(SAMLMessageHandler samlMessageHandler) {
+        this.samlMessageHandler = samlMessageHandler;
+    }
+
+    @Required
+    public void setEntityID(final String entityID) {
+        this.entityID = entityID;
+    }
+
+    @Required
+    public void setSessionIndex(final SessionIndex sessionIndex) {
+        this.sessionIndex = sessionIndex;
+    }
+
+    /**
+     * @param outstandingRequestStore the store the IDs of the sent LogoutRequests are recorded in, to correlate the
+     *                                InResponseTo of the LogoutResponses
+     */
+    public void setOutstandingRequestStore(final OutstandingRequestStore outstandingRequestStore) {
+        this.outstandingRequestStore = outstandingRequestStore;
+    }
+
+    /**
+     * @param authenticationCookies the cookies that are removed from the browser on logout, when the service provider
+     *                              keeps logins in an authentication cookie
+     */
+    public void setAuthenticationCookies(final AuthenticationCookies authenticationCookies) {
+        this.authenticationCookies = authenticationCookies;
+    }
+
+    /**
+     * @param singleLogoutServiceURLs the URLs LogoutRequests and LogoutResponses are sent to, by the entity ID of the
+     *                                identity provider
+     */
+    public void setSingleLogoutServiceURLs(final Map<String, String> singleLogoutServiceURLs) {
+        this.singleLogoutServiceURLs = singleLogoutServiceURLs;
+    }
+
+    /**
+     * @param logoutSuccessURL the context relative URL users are sent to once they are logged out
+     */
+    public void setLogoutSuccessURL(final String logoutSuccessURL) {
+        this.logoutSuccessURL = logoutSuccessURL;
+    }
+
+    @RequestMapping(value = {"/OpenSAML.sso/Logout"}, method = RequestMethod.GET)
+    public void logout(
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        SAMLSessionKey sessionKey = authentication instanceof SAMLAuthenticationToken
+                ? ((SAMLAuthenticationToken) authentication).getSessionKey() : null;
+
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+            session.invalidate();
+        }
+        SecurityContextHolder.clearContext();
+        if (authenticationCookies != null) {
+            authenticationCookies.clear(request, response);
+        }
+
+        if (sessionKey == null) {
+            log.debug("No SAML session to log out of, only the local session was invalidated");
+            response.sendRedirect(request.getContextPath() + logoutSuccessURL);
+            return;
+        }
+
+        // only the identity provider that issued the session may learn its NameID and SessionIndex
+        String location = singleLogoutServiceURLs.get(sessionKey.getIssuer());
+        if (location == null) {
+            log.warn("No Single Logout Service URL for {}, only the local session was invalidated", sessionKey.getIssuer());
+            response.sendRedirect(request.getContextPath() + logoutSuccessURL);
+            return;
+        }
+
+        LogoutMessageGenerator generator = new LogoutMessageGenerator(entityID, timeService, idService);
+        LogoutRequest logoutRequest = generator.generateLogoutRequest(location, sessionKey);
+
+        if (outstandingRequestStore != null) {
+            outstandingRequestStore.add(logoutRequest.getID());
+        }
+
+        log.debug("Sending LogoutRequest for {} to {}", sessionKey, location);
+        send(logoutRequest, location, null, response);
+    }
+
+    @RequestMapping(value = {"/OpenSAML.sso/SingleLogout"}, method = RequestMethod.POST)
+    public void singleLogout(
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        SAMLMessageContext messageContext;
+        try {
+            messageContext = samlMessageHandler.extractSAMLMessageContext(request);
+        } catch (MessageDecodingException me) {
+            log.warn("Could not decode SAML logout message", me);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        } catch (org.opensaml.xml.security.SecurityException se) {
+            log.warn("SAML logout message did not satisfy the security policy", se);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        Object message = messageContext.getInboundSAMLMessage();
+        if (message instanceof LogoutRequest) {
+            logoutRequested((LogoutRequest) message, messageContext.getInboundMessageIssuer(), messageContext.getRelayState(), response);
+        } else if (message instanceof LogoutResponse) {
+            LogoutResponse logoutResponse = (LogoutResponse) message;
+            if (logoutResponse.getStatus() == null || logoutResponse.getStatus().getStatusCode() == null
+                    || !StatusCode.SUCCESS_URI.equals(logoutResponse.getStatus().getStatusCode().getValue())) {
+                log.warn("Identity Provider {} did not log out the user completely", messageContext.getInboundMessageIssuer());
+            }
+            response.sendRedirect(request.getContextPath() + logoutSuccessURL);
+        } else {
+            log.warn("SAML Message was not a LogoutRequest or LogoutResponse");
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+
+    private void logoutRequested(LogoutRequest logoutRequest, String issuer, String relayState,
+                                 HttpServletResponse response) throws IOException {
+        String statusCode = StatusCode.SUCCESS_URI;
+        if (logoutRequest.getNotOnOrAfter() != null
+                && !logoutRequest.getNotOnOrAfter().isAfter(timeService.getCurrentDateTime())) {
+            log.warn("LogoutRequest {} of {} has expired", logoutRequest.getID(), issuer);
+            statusCode = StatusCode.REQUESTER_URI;
+        } else if (logoutRequest.getNameID() == null) {
+            log.warn("LogoutRequest {} of {} has no plain NameID", logoutRequest.getID(), issuer);
+            statusCode = StatusCode.REQUESTER_URI;
+        } else {
+            List<String> sessionIndexes = new ArrayList<String>(logoutRequest.getSessionIndexes().size());
+            for (org.opensaml.saml2.core.SessionIndex index : logoutRequest.getSessionIndexes()) {
+                sessionIndexes.add(index.getSessionIndex());
+            }
+            int count = sessionIndex.logout(issuer, logoutRequest.getNameID().getValue(), sessionIndexes);
+            log.debug("LogoutRequest {} of {} invalidated {} sessions", new Object[]{logoutRequest.getID(), issuer, count});
+        }
+
+        String location = singleLogoutServiceURLs.get(issuer);
+        if (location == null) {
+            log.warn("No Single Logout Service URL for {}, not sending a LogoutResponse", issuer);
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        LogoutMessageGenerator generator = new LogoutMessageGenerator(entityID, timeService, idService);
+        send(generator.generateLogoutResponse(location, logoutRequest.getID(), statusCode), location, relayState, response);
+    }
+
+    private void send(SignableSAMLObject message, String location, String relayState,
+                      HttpServletResponse response) throws IOException {
+        Endpoint endpoint = new EndpointGenerator().generateEndpoint(SingleLogoutService.DEFAULT_ELEMENT_NAME, location, null);
+        try {
+            samlMessageHandler.sendSAMLMessage(message, endpoint, new HttpServletResponseAdapter(response, false), relayState);
+        } catch (MessageEncodingException mee) {
+            log.error("Could not send logout message to Identity Provider.", mee);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+}
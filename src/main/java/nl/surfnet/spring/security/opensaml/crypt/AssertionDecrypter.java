@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.EncryptedAssertion;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.encryption.DecryptionException;
+import org.opensaml.xml.encryption.EncryptedData;
+import org.opensaml.xml.encryption.EncryptedKey;
+import org.opensaml.xml.encryption.EncryptionMethod;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Decrypts the EncryptedAssertions sent to this service provider.
+ * <p/>
+ * The private key of the service provider is loaded once, by the {@link ServiceProviderKey}. As that is the
+ * only key an EncryptedKey can be meant for, the KeyInfo of the EncryptedData is not resolved through credential
+ * resolvers; the EncryptedKeys are taken from the EncryptedAssertion or the KeyInfo of the EncryptedData directly. The
+ * data encryption key is unwrapped with per thread <code>Cipher</code> instances from a {@link JCAInstancePool};
+ * key transport algorithms the JCA cannot handle directly are left to the OpenSAML {@link org.opensaml.xml.encryption.Decrypter}.
+ */
+public class AssertionDecrypter implements InitializingBean {
+
+    private final static Logger log = LoggerFactory.getLogger(AssertionDecrypter.class);
+
+    private final JCAInstancePool jcaInstancePool;
+    private final org.opensaml.xml.encryption.Decrypter decrypter = new org.opensaml.xml.encryption.Decrypter(null, null, null);
+
+    private ServiceProviderKey serviceProviderKey;
+    private PrivateKey privateKey;
+
+    public AssertionDecrypter(JCAInstancePool jcaInstancePool) {
+        super();
+        this.jcaInstancePool = jcaInstancePool;
+    }
+
+    /**
+     * @param serviceProviderKey the key of the service provider the assertions are encrypted for
+     */
+    public void setServiceProviderKey(final ServiceProviderKey serviceProviderKey) {
+        this.serviceProviderKey = serviceProviderKey;
+    }
+
+    /**
+     * @param privateKey the private key of the service provider, instead of a {@link ServiceProviderKey}
+     */
+    public void setPrivateKey(final PrivateKey privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        if (privateKey == null) {
+            if (serviceProviderKey == null) {
+                throw new IllegalArgumentException("Either a private key or a service provider key is required");
+            }
+            privateKey = serviceProviderKey.getPrivateKey();
+        }
+    }
+
+    public Assertion decrypt(EncryptedAssertion encryptedAssertion) throws DecryptionException {
+        EncryptedData encryptedData = encryptedAssertion.getEncryptedData();
+        if (encryptedData == null || encryptedData.getEncryptionMethod() == null) {
+            throw new DecryptionException("EncryptedAssertion has no EncryptedData with an EncryptionMethod");
+        }
+        Key dataKey = decryptDataKey(encryptedAssertion, encryptedData.getEncryptionMethod().getAlgorithm());
+        DocumentFragment fragment = decrypter.decryptDataToDOM(encryptedData, dataKey);
+
+        Element element = null;
+        for (Node child = fragment.getFirstChild(); child != null && element == null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                element = (Element) child;
+            }
+        }
+        if (element == null) {
+            throw new DecryptionException("EncryptedAssertion did not contain an element");
+        }
+
+        // as its own document, so that the signature of the assertion can find it by ID
+        Document document = element.getOwnerDocument().getImplementation().createDocument(null, null, null);
+        element = (Element) document.adoptNode(element);
+        document.appendChild(element);
+
+        try {
+            Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(element);
+            XMLObject xmlObject = unmarshaller == null ? null : unmarshaller.unmarshall(element);
+            if (!(xmlObject instanceof Assertion)) {
+                throw new DecryptionException("EncryptedAssertion did not contain an Assertion");
+            }
+            return (Assertion) xmlObject;
+        } catch (UnmarshallingException e) {
+            throw new DecryptionException("Unable to unmarshall the decrypted Assertion", e);
+        }
+    }
+
+    private Key decryptDataKey(EncryptedAssertion encryptedAssertion, String dataAlgorithm) throws DecryptionException {
+        List<EncryptedKey> encryptedKeys = new ArrayList<EncryptedKey>(encryptedAssertion.getEncryptedKeys());
+        if (encryptedAssertion.getEncryptedData().getKeyInfo() != null) {
+            encryptedKeys.addAll(encryptedAssertion.getEncryptedData().getKeyInfo().getEncryptedKeys());
+        }
+        for (EncryptedKey encryptedKey : encryptedKeys) {
+            try {
+                return decryptKey(encryptedKey, dataAlgorithm);
+            } catch (DecryptionException e) {
+                log.debug("Unable to decrypt EncryptedKey with the private key of the service provider", e);
+            }
+        }
+        throw new DecryptionException("None of the " + encryptedKeys.size() + " EncryptedKeys could be decrypted");
+    }
+
+    private Key decryptKey(EncryptedKey encryptedKey, String dataAlgorithm) throws DecryptionException {
+        EncryptionMethod encryptionMethod = encryptedKey.getEncryptionMethod();
+        String transformation = encryptionMethod == null ? null : JCEMapper.translateURItoJCEID(encryptionMethod.getAlgorithm());
+        String keyAlgorithm = JCEMapper.getJCEKeyAlgorithmFromURI(dataAlgorithm);
+        if (transformation == null || keyAlgorithm == null || keyAlgorithm.length() == 0
+                || encryptionMethod.getOAEPparams() != null || !encryptionMethod.getUnknownXMLObjects().isEmpty()
+                || encryptedKey.getCipherData() == null || encryptedKey.getCipherData().getCipherValue() == null) {
+            return decrypter.decryptKey(encryptedKey, dataAlgorithm, privateKey);
+        }
+        try {
+            Cipher cipher = jcaInstancePool.getCipher(transformation);
+            cipher.init(Cipher.UNWRAP_MODE, privateKey);
+            return cipher.unwrap(Base64.decode(encryptedKey.getCipherData().getCipherValue().getValue()), keyAlgorithm, Cipher.SECRET_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new DecryptionException("Unable to unwrap the data encryption key with " + transformation, e);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.SigningUtil;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.impl.SignatureImpl;
+import org.opensaml.xml.validation.ValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.surfnet.spring.security.opensaml.CertificateStore;
+import nl.surfnet.spring.security.opensaml.KeyStoreCertificateStoreAdapter;
+import nl.surfnet.spring.security.opensaml.RolloverCertificateStore;
+import nl.surfnet.spring.security.opensaml.util.Clock;
+
+/**
+ * Explicit key trust engine that keeps the decoded verification keys of every issuer.
+ * <p/>
+ * As with the {@link org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine}, a signature is trusted
+ * when it verifies with one of the keys configured for the issuer. The KeyInfo of the signature is therefore
+ * not resolved at all. The keys of an issuer are kept in {@link IssuerKeys}, which tries the key that verified
+ * most recently first and counts the hits per key. RSA signature values are verified with per thread <code>java.security.Signature</code>
+ * instances from a {@link JCAInstancePool}; other algorithms are handed to XMLSec.
+ * <p/>
+ * All cached keys are dropped when the revision of the {@link CertificateStore} changes.
+ */
+public class CachingSignatureTrustEngine implements SignatureTrustEngine {
+
+    private final static Logger log = LoggerFactory.getLogger(CachingSignatureTrustEngine.class);
+
+    private static final String RSA = "RSA";
+
+    private final CredentialResolver credentialResolver;
+    private final KeyInfoCredentialResolver keyInfoCredentialResolver;
+    private final JCAInstancePool jcaInstancePool;
+    private final ConcurrentMap<String, IssuerKeys> trustedKeys = new ConcurrentHashMap<String, IssuerKeys>();
+    private RolloverCertificateStore certificateStore;
+    private Clock clock = Clock.SYSTEM;
+    private volatile long certificateStoreRevision;
+
+    public CachingSignatureTrustEngine(CredentialResolver credentialResolver, KeyInfoCredentialResolver keyInfoCredentialResolver,
+                                       JCAInstancePool jcaInstancePool) {
+        super();
+        this.credentialResolver = credentialResolver;
+        this.keyInfoCredentialResolver = keyInfoCredentialResolver;
+        this.jcaInstancePool = jcaInstancePool;
+    }
+
+    /**
+     * @param certificateStore the store whose revision is watched to invalidate the cached keys
+     */
+    public void setCertificateStore(CertificateStore certificateStore) {
+        this.certificateStore = KeyStoreCertificateStoreAdapter.adapt(certificateStore);
+        this.certificateStoreRevision = this.certificateStore.getRevision();
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public KeyInfoCredentialResolver getKeyInfoResolver() {
+        return keyInfoCredentialResolver;
+    }
+
+    public boolean validate(Signature signature, CriteriaSet trustBasisCriteria) throws SecurityException {
+        String entityID = entityIDOf(trustBasisCriteria);
+        List<PublicKey> keys = getTrustedKeys(entityID);
+        if (keys.isEmpty()) {
+            return false;
+        }
+        PreparedSignature preparedSignature = prepare(signature);
+        if (preparedSignature == null) {
+            return validateWithXMLSec(entityID, signature, keys);
+        }
+        return verifySignatureValue(entityID, preparedSignature, keys) != null && verifyReferences(preparedSignature);
+    }
+
+    public boolean validate(byte[] signature, byte[] content, String algorithmURI, CriteriaSet trustBasisCriteria,
+                            Credential candidateCredential) throws SecurityException {
+        String jcaAlgorithm = JCEMapper.translateURItoJCEID(algorithmURI);
+        String entityID = entityIDOf(trustBasisCriteria);
+        for (PublicKey key : getTrustedKeys(entityID)) {
+            boolean verified = jcaAlgorithm != null && RSA.equals(key.getAlgorithm())
+                    ? verify(jcaAlgorithm, key, content, signature)
+                    : SigningUtil.verify(key, jcaAlgorithm, signature, content);
+            if (verified) {
+                recordSuccess(entityID, key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the verification keys configured for the issuer, resolved once and then kept, the key that
+     *         verified most recently first
+     */
+    public List<PublicKey> getTrustedKeys(String entityID) throws SecurityException {
+        if (entityID == null) {
+            return Collections.emptyList();
+        }
+        checkCertificateStoreRevision();
+        IssuerKeys keys = trustedKeys.get(entityID);
+        if (keys == null) {
+            keys = new IssuerKeys(resolveTrustedKeys(entityID), clock);
+            // only known issuers are kept, so junk issuers cannot grow the cache
+            if (!keys.isEmpty()) {
+                IssuerKeys existing = trustedKeys.putIfAbsent(entityID, keys);
+                if (existing != null) {
+                    keys = existing;
+                }
+            }
+        }
+        return keys.getKeys();
+    }
+
+    /**
+     * @return the verification keys of the issuer with the number of signatures each of them verified, or an
+     *         empty list if the keys of the issuer have not been resolved yet
+     */
+    public List<IssuerKeys.TrustedKey> getKeyStatistics(String entityID) {
+        IssuerKeys keys = entityID == null ? null : trustedKeys.get(entityID);
+        return keys == null ? Collections.<IssuerKeys.TrustedKey>emptyList() : keys.getTrustedKeys();
+    }
+
+    /**
+     * Forgets the resolved keys, for instance after the certificates of the identity
+     * providers have changed.
+     */
+    public void clearCache() {
+        trustedKeys.clear();
+    }
+
+    /**
+     * Canonicalizes the SignedInfo and decodes the SignatureValue of an RSA signature.
+     *
+     * @return the prepared signature, or <code>null</code> if the signature has to be verified by XMLSec
+     */
+    public PreparedSignature prepare(Signature signature) throws SecurityException {
+        if (!(signature instanceof SignatureImpl) || ((SignatureImpl) signature).getXMLSignature() == null) {
+            return null;
+        }
+        XMLSignature xmlSignature = ((SignatureImpl) signature).getXMLSignature();
+        String algorithmURI = xmlSignature.getSignedInfo().getSignatureMethodURI();
+        String jcaAlgorithm = JCEMapper.translateURItoJCEID(algorithmURI);
+        if (jcaAlgorithm == null || !jcaAlgorithm.endsWith("with" + RSA)) {
+            return null;
+        }
+        try {
+            return new PreparedSignature(xmlSignature, xmlSignature.getSignedInfo().getCanonicalizedOctetStream(),
+                    xmlSignature.getSignatureValue(), jcaAlgorithm);
+        } catch (XMLSecurityException e) {
+            throw new SecurityException("Unable to canonicalize SignedInfo", e);
+        }
+    }
+
+    /**
+     * Verifies the SignatureValue over the canonicalized SignedInfo. Does not touch the DOM.
+     *
+     * The key that verifies is tried first for the next signature of the issuer.
+     *
+     * @return the key that verified the signature, or <code>null</code> if none of the keys did
+     */
+    public PublicKey verifySignatureValue(String entityID, PreparedSignature preparedSignature, List<PublicKey> keys) throws SecurityException {
+        for (PublicKey key : keys) {
+            if (RSA.equals(key.getAlgorithm())
+                    && verify(preparedSignature.getJCAAlgorithm(), key, preparedSignature.getSignedInfo(), preparedSignature.getSignatureValue())) {
+                recordSuccess(entityID, key);
+                return key;
+            }
+        }
+        log.debug("Signature value did not verify with any of the {} trusted keys", keys.size());
+        return null;
+    }
+
+    /**
+     * Verifies the digests of the references in the SignedInfo.
+     */
+    public boolean verifyReferences(PreparedSignature preparedSignature) throws SecurityException {
+        try {
+            return preparedSignature.getXMLSignature().getSignedInfo().verify(false);
+        } catch (XMLSecurityException e) {
+            throw new SecurityException("Unable to verify the references of the signature", e);
+        }
+    }
+
+    private boolean verify(String jcaAlgorithm, PublicKey key, byte[] content, byte[] signatureValue) throws SecurityException {
+        try {
+            java.security.Signature verifier = jcaInstancePool.getSignature(jcaAlgorithm);
+            verifier.initVerify(key);
+            verifier.update(content);
+            return verifier.verify(signatureValue);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Unable to verify signature value with " + jcaAlgorithm, e);
+        }
+    }
+
+    private void recordSuccess(String entityID, PublicKey key) {
+        IssuerKeys keys = entityID == null ? null : trustedKeys.get(entityID);
+        if (keys != null) {
+            keys.recordSuccess(key);
+        }
+    }
+
+    private boolean validateWithXMLSec(String entityID, Signature signature, List<PublicKey> keys) {
+        for (PublicKey key : keys) {
+            try {
+                new SignatureValidator(SecurityHelper.getSimpleCredential(key, null)).validate(signature);
+                recordSuccess(entityID, key);
+                return true;
+            } catch (ValidationException e) {
+                log.debug("Signature did not validate with trusted key", e);
+            }
+        }
+        return false;
+    }
+
+    private void checkCertificateStoreRevision() {
+        if (certificateStore != null && certificateStore.getRevision() != certificateStoreRevision) {
+            log.debug("Certificate store changed, clearing cached keys");
+            certificateStoreRevision = certificateStore.getRevision();
+            clearCache();
+        }
+    }
+
+    private List<PublicKey> resolveTrustedKeys(String entityID) throws SecurityException {
+        CriteriaSet criteriaSet = new CriteriaSet();
+        criteriaSet.add(new EntityIDCriteria(entityID));
+        criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
+        List<PublicKey> keys = new ArrayList<PublicKey>();
+        for (Credential credential : credentialResolver.resolve(criteriaSet)) {
+            Key key = SecurityHelper.extractVerificationKey(credential);
+            if (key instanceof PublicKey) {
+                keys.add((PublicKey) key);
+            }
+        }
+        log.debug("Resolved {} trusted keys for {}", keys.size(), entityID);
+        return Collections.unmodifiableList(keys);
+    }
+
+    private String entityIDOf(CriteriaSet criteriaSet) {
+        EntityIDCriteria entityIDCriteria = criteriaSet.get(EntityIDCriteria.class);
+        return entityIDCriteria == null ? null : entityIDCriteria.getEntityID();
+    }
+}
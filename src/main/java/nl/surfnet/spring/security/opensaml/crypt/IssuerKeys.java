@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.surfnet.spring.security.opensaml.util.Clock;
+
+/**
+ * The verification keys of one issuer, ordered by most recent successful verification.
+ * <p/>
+ * During a key rollover an identity provider has several valid keys, but signs with only one of them at a time.
+ * Moving the key that verified last to the front makes sure that in steady state the first key tried is the
+ * right one. The ordered list is immutable and replaced as a whole, so readers never lock.
+ */
+public class IssuerKeys {
+
+    private final List<TrustedKey> trustedKeys;
+    private volatile List<PublicKey> orderedKeys;
+
+    /**
+     * @param clock the clock the time of the last successful verification of a key is taken from
+     */
+    public IssuerKeys(List<PublicKey> keys, Clock clock) {
+        super();
+        List<TrustedKey> newTrustedKeys = new ArrayList<TrustedKey>(keys.size());
+        for (PublicKey key : keys) {
+            newTrustedKeys.add(new TrustedKey(key, clock));
+        }
+        this.trustedKeys = Collections.unmodifiableList(newTrustedKeys);
+        this.orderedKeys = Collections.unmodifiableList(new ArrayList<PublicKey>(keys));
+    }
+
+    /**
+     * @return the keys, the one that verified most recently first
+     */
+    public List<PublicKey> getKeys() {
+        return orderedKeys;
+    }
+
+    /**
+     * @return the keys in configuration order, with their hit counters
+     */
+    public List<TrustedKey> getTrustedKeys() {
+        return trustedKeys;
+    }
+
+    public boolean isEmpty() {
+        return trustedKeys.isEmpty();
+    }
+
+    /**
+     * Counts the successful verification and moves the key to the front.
+     */
+    public void recordSuccess(PublicKey key) {
+        for (TrustedKey trustedKey : trustedKeys) {
+            if (trustedKey.getKey().equals(key)) {
+                trustedKey.recordSuccess();
+                break;
+            }
+        }
+        List<PublicKey> current = orderedKeys;
+        if (current.isEmpty() || current.get(0).equals(key) || !current.contains(key)) {
+            return;
+        }
+        List<PublicKey> reordered = new ArrayList<PublicKey>(current.size());
+        reordered.add(key);
+        for (PublicKey publicKey : current) {
+            if (!publicKey.equals(key)) {
+                reordered.add(publicKey);
+            }
+        }
+        orderedKeys = Collections.unmodifiableList(reordered);
+    }
+
+    /**
+     * A verification key with the number of signatures it verified.
+     */
+    public static class TrustedKey {
+
+        private final PublicKey key;
+        private final Clock clock;
+        private final AtomicLong hits = new AtomicLong();
+        private volatile long lastSuccess;
+
+        TrustedKey(PublicKey key, Clock clock) {
+            this.key = key;
+            this.clock = clock;
+        }
+
+        public PublicKey getKey() {
+            return key;
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @return the time in milliseconds of the last successful verification, or 0 if the key never verified
+         */
+        public long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        void recordSuccess() {
+            hits.incrementAndGet();
+            lastSuccess = clock.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Keeps one instance of each JCA engine class and algorithm per thread, so that the provider lookup in
+ * <code>getInstance</code> is done once per thread instead of once per message. The instances must be
+ * (re)initialized by the caller before every use and must not be handed to another thread.
+ */
+public class JCAInstancePool {
+
+    private final ThreadLocal<Map<String, Object>> instances = new ThreadLocal<Map<String, Object>>() {
+        @Override
+        protected Map<String, Object> initialValue() {
+            return new HashMap<String, Object>();
+        }
+    };
+
+    public Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Object> threadInstances = instances.get();
+        String key = "Signature." + algorithm;
+        Signature signature = (Signature) threadInstances.get(key);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            threadInstances.put(key, signature);
+        }
+        return signature;
+    }
+
+    public Cipher getCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Object> threadInstances = instances.get();
+        String key = "Cipher." + transformation;
+        Cipher cipher = (Cipher) threadInstances.get(key);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            threadInstances.put(key, cipher);
+        }
+        return cipher;
+    }
+
+    public MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Object> threadInstances = instances.get();
+        String key = "MessageDigest." + algorithm;
+        MessageDigest messageDigest = (MessageDigest) threadInstances.get(key);
+        if (messageDigest == null) {
+            messageDigest = MessageDigest.getInstance(algorithm);
+            threadInstances.put(key, messageDigest);
+        } else {
+            messageDigest.reset();
+        }
+        return messageDigest;
+    }
+
+    public Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Object> threadInstances = instances.get();
+        String key = "Mac." + algorithm;
+        Mac mac = (Mac) threadInstances.get(key);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            threadInstances.put(key, mac);
+        }
+        return mac;
+    }
+
+}
@@ -16,28 +16,60 @@
 
 package nl.surfnet.spring.security.opensaml.crypt;
 
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.x509.BasicX509Credential;
 import org.springframework.beans.factory.annotation.Required;
 
 import nl.surfnet.spring.security.opensaml.CertificateStore;
+import nl.surfnet.spring.security.opensaml.KeyStoreCertificateStoreAdapter;
+import nl.surfnet.spring.security.opensaml.RolloverCertificateStore;
 
+/**
+ * Resolves the credentials from the current keystore of the {@link CertificateStore}. When resolving by entityID,
+ * all certificates of the identity provider are resolved from the store, including the additional ones it has
+ * during a key rollover.
+ */
 public class KeyStoreCredentialResolverDelegate implements CredentialResolver {
 
-    private CertificateStore certificateStore;
+    private RolloverCertificateStore certificateStore;
 
     @Required
     public void setCertificateStore(final CertificateStore certificateStore) {
-        this.certificateStore = certificateStore;
+        this.certificateStore = KeyStoreCertificateStoreAdapter.adapt(certificateStore);
     }
 
     public Iterable<Credential> resolve(CriteriaSet criteriaSet) throws SecurityException {
-        return getKeyStoreCredentialResolver().resolve(criteriaSet);
+        org.opensaml.xml.security.credential.KeyStoreCredentialResolver keyStoreCredentialResolver = getKeyStoreCredentialResolver();
+        EntityIDCriteria entityIDCriteria = criteriaSet.get(EntityIDCriteria.class);
+        if (entityIDCriteria == null) {
+            return keyStoreCredentialResolver.resolve(criteriaSet);
+        }
+
+        // every certificate of the entity by its own list, never by guessing at aliases
+        String entityID = entityIDCriteria.getEntityID();
+        UsageCriteria usageCriteria = criteriaSet.get(UsageCriteria.class);
+        List<Credential> credentials = new ArrayList<Credential>();
+        for (X509Certificate certificate : certificateStore.getCertificates(entityID)) {
+            BasicX509Credential credential = new BasicX509Credential();
+            credential.setEntityId(entityID);
+            credential.setUsageType(usageCriteria == null ? UsageType.UNSPECIFIED : usageCriteria.getUsage());
+            credential.setEntityCertificate(certificate);
+            credential.setEntityCertificateChain(Collections.singletonList(certificate));
+            credentials.add(credential);
+        }
+        return credentials;
     }
 
     public Credential resolveSingle(CriteriaSet criteriaSet) throws SecurityException {
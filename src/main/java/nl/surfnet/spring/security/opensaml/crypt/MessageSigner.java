@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+
+import org.apache.xml.security.algorithms.JCEMapper;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.util.Base64;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * Signs the outbound messages of the service provider with its {@link ServiceProviderKey}.
+ * <p/>
+ * The signing credential is built once. Signatures are computed with per thread
+ * <code>java.security.Signature</code> instances from a {@link JCAInstancePool}, for the bindings that sign the
+ * encoded message rather than the XML: HTTP-Redirect and HTTP-POST-SimpleSign.
+ */
+public class MessageSigner implements InitializingBean {
+
+    private final JCAInstancePool jcaInstancePool;
+    private ServiceProviderKey serviceProviderKey;
+    private String entityID;
+    private String signatureAlgorithmURI = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256;
+    private BasicX509Credential credential;
+
+    public MessageSigner(JCAInstancePool jcaInstancePool) {
+        super();
+        this.jcaInstancePool = jcaInstancePool;
+    }
+
+    @Required
+    public void setServiceProviderKey(final ServiceProviderKey serviceProviderKey) {
+        this.serviceProviderKey = serviceProviderKey;
+    }
+
+    @Required
+    public void setEntityID(final String entityID) {
+        this.entityID = entityID;
+    }
+
+    /**
+     * @param signatureAlgorithmURI the XML Signature algorithm URI, defaults to RSA with SHA-256
+     */
+    public void setSignatureAlgorithmURI(final String signatureAlgorithmURI) {
+        this.signatureAlgorithmURI = signatureAlgorithmURI;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        if (JCEMapper.translateURItoJCEID(signatureAlgorithmURI) == null) {
+            throw new IllegalArgumentException("Unsupported signature algorithm " + signatureAlgorithmURI);
+        }
+        credential = new BasicX509Credential();
+        credential.setEntityId(entityID);
+        credential.setUsageType(UsageType.SIGNING);
+        credential.setPrivateKey(serviceProviderKey.getPrivateKey());
+        if (serviceProviderKey.getCertificate() != null) {
+            credential.setEntityCertificate(serviceProviderKey.getCertificate());
+            credential.setEntityCertificateChain(Collections.singletonList(serviceProviderKey.getCertificate()));
+        }
+    }
+
+    /**
+     * @return the signing credential of the service provider, to be set on the outbound message context
+     */
+    public Credential getCredential() {
+        return credential;
+    }
+
+    public String getSignatureAlgorithmURI() {
+        return signatureAlgorithmURI;
+    }
+
+    /**
+     * @return the base64 encoded signature over the UTF-8 bytes of the data
+     */
+    public String sign(String algorithmURI, String data) throws SecurityException {
+        String jcaAlgorithm = JCEMapper.translateURItoJCEID(algorithmURI);
+        if (jcaAlgorithm == null) {
+            throw new SecurityException("Unsupported signature algorithm " + algorithmURI);
+        }
+        try {
+            java.security.Signature signer = jcaInstancePool.getSignature(jcaAlgorithm);
+            signer.initSign(credential.getPrivateKey());
+            signer.update(data.getBytes("UTF-8"));
+            return Base64.encodeBytes(signer.sign(), Base64.DONT_BREAK_LINES);
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException("Unable to sign with " + jcaAlgorithm, e);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new SecurityException("UTF-8 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import org.apache.xml.security.signature.XMLSignature;
+
+/**
+ * The parts of an XML signature that are needed to verify its SignatureValue: the canonicalized SignedInfo,
+ * the decoded signature value and the JCA name of the signature algorithm. Once prepared, the SignatureValue
+ * can be verified without touching the DOM.
+ */
+public class PreparedSignature {
+
+    private final XMLSignature xmlSignature;
+    private final byte[] signedInfo;
+    private final byte[] signatureValue;
+    private final String jcaAlgorithm;
+
+    public PreparedSignature(XMLSignature xmlSignature, byte[] signedInfo, byte[] signatureValue, String jcaAlgorithm) {
+        super();
+        this.xmlSignature = xmlSignature;
+        this.signedInfo = signedInfo;
+        this.signatureValue = signatureValue;
+        this.jcaAlgorithm = jcaAlgorithm;
+    }
+
+    public XMLSignature getXMLSignature() {
+        return xmlSignature;
+    }
+
+    public byte[] getSignedInfo() {
+        return signedInfo;
+    }
+
+    public byte[] getSignatureValue() {
+        return signatureValue;
+    }
+
+    public String getJCAAlgorithm() {
+        return jcaAlgorithm;
+    }
+}
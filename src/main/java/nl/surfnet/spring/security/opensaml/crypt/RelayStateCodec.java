@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.xml.util.Base64;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.crypto.codec.Utf8;
+
+/**
+ * Carries the URL a user wanted to visit through the login in the RelayState, instead of in the HTTP session.
+ * <p/>
+ * The RelayState is a truncated HMAC-SHA256 of the URL, {@link #MAC_LENGTH} base64url characters, followed by the URL
+ * itself, so that it stays as short as the URL allows; the SAML bindings only guarantee 80 bytes. Only URLs relative
+ * to the context root of the application are accepted, so the RelayState can not be used to redirect users to
+ * another site. Without a configured secret a random one is generated, which only works for a single node.
+ */
+public class RelayStateCodec implements InitializingBean {
+
+    static final int MAC_BYTES = 12;
+    static final int MAC_LENGTH = MAC_BYTES * 4 / 3;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final JCAInstancePool jcaInstancePool;
+    private String secret;
+    private SecretKeySpec key;
+
+    public RelayStateCodec(JCAInstancePool jcaInstancePool) {
+        super();
+        this.jcaInstancePool = jcaInstancePool;
+    }
+
+    /**
+     * @param secret the secret the RelayStates are authenticated with, the same on all nodes of a cluster
+     */
+    public void setSecret(final String secret) {
+        this.secret = secret;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        byte[] keyBytes;
+        if (StringUtils.isBlank(secret)) {
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        } else {
+            keyBytes = Utf8.encode(secret);
+        }
+        key = new SecretKeySpec(keyBytes, ALGORITHM);
+    }
+
+    /**
+     * @return whether the URL is relative to the context root: starts with a single slash and has no line breaks
+     */
+    public static boolean isContextRelative(String url) {
+        return url != null && url.startsWith("/") && !url.startsWith("//") && !url.startsWith("/\\")
+                && url.indexOf('\r') < 0 && url.indexOf('\n') < 0;
+    }
+
+    /**
+     * @param url a context relative URL
+     * @return the RelayState for the URL
+     */
+    public String encode(String url) {
+        if (!isContextRelative(url)) {
+            throw new IllegalArgumentException("Not a context relative URL: " + url);
+        }
+        return mac(url) + url;
+    }
+
+    /**
+     * @return the URL of the RelayState, or <code>null</code> if the RelayState was not created by {@link #encode}
+     *         with the same secret
+     */
+    public String decode(String relayState) {
+        if (relayState == null || relayState.length() <= MAC_LENGTH) {
+            return null;
+        }
+        String url = relayState.substring(MAC_LENGTH);
+        if (!isContextRelative(url) || !constantTimeEquals(mac(url), relayState.substring(0, MAC_LENGTH))) {
+            return null;
+        }
+        return url;
+    }
+
+    private String mac(String url) {
+        byte[] mac;
+        try {
+            Mac hmac = jcaInstancePool.getMac(ALGORITHM);
+            hmac.init(key);
+            mac = hmac.doFinal(Utf8.encode(url));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+        String encoded = Base64.encodeBytes(mac, 0, MAC_BYTES, Base64.DONT_BREAK_LINES);
+        return encoded.replace('+', '-').replace('/', '_');
+    }
+
+    private static boolean constantTimeEquals(String expected, String actual) {
+        int difference = expected.length() ^ actual.length();
+        for (int i = 0; i < expected.length() && i < actual.length(); i++) {
+            difference |= expected.charAt(i) ^ actual.charAt(i);
+        }
+        return difference == 0;
+    }
+}
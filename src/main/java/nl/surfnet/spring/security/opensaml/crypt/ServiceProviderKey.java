@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.io.InputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.core.io.Resource;
+
+/**
+ * A private key of the service provider, with its certificate, loaded once from a keystore.
+ */
+public class ServiceProviderKey implements InitializingBean {
+
+    private Resource keyStoreLocation;
+    private String keyStoreType = "JKS";
+    private String keyStorePassword;
+    private String keyAlias;
+    private String keyPassword;
+
+    private PrivateKey privateKey;
+    private X509Certificate certificate;
+
+    @Required
+    public void setKeyStoreLocation(final Resource keyStoreLocation) {
+        this.keyStoreLocation = keyStoreLocation;
+    }
+
+    public void setKeyStoreType(final String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
+    public void setKeyStorePassword(final String keyStorePassword) {
+        this.keyStorePassword = keyStorePassword;
+    }
+
+    @Required
+    public void setKeyAlias(final String keyAlias) {
+        this.keyAlias = keyAlias;
+    }
+
+    /**
+     * @param keyPassword the password of the private key, defaults to the password of the keystore
+     */
+    public void setKeyPassword(final String keyPassword) {
+        this.keyPassword = keyPassword;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+        char[] storePassword = keyStorePassword == null ? null : keyStorePassword.toCharArray();
+        InputStream keyStoreStream = keyStoreLocation.getInputStream();
+        try {
+            keyStore.load(keyStoreStream, storePassword);
+        } finally {
+            IOUtils.closeQuietly(keyStoreStream);
+        }
+        Key key = keyStore.getKey(keyAlias, keyPassword == null ? storePassword : keyPassword.toCharArray());
+        if (!(key instanceof PrivateKey)) {
+            throw new IllegalArgumentException("No private key with alias " + keyAlias + " in " + keyStoreLocation);
+        }
+        privateKey = (PrivateKey) key;
+        Certificate keyCertificate = keyStore.getCertificate(keyAlias);
+        certificate = keyCertificate instanceof X509Certificate ? (X509Certificate) keyCertificate : null;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * @return the certificate of the key, or <code>null</code> if the keystore has no X.509 certificate for it
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+}
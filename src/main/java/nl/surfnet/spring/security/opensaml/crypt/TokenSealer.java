@@ -0,0 +1,194 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.crypt;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opensaml.xml.util.Base64;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.security.crypto.codec.Utf8;
+
+/**
+ * Protects short strings that are handed to the browser, such as authentication cookies, against tampering and,
+ * optionally, against reading.
+ * <p/>
+ * A sealed string is the base64url encoded payload, followed by a dot and a base64url encoded HMAC-SHA256 of the
+ * encoded payload, truncated to {@link #MAC_BYTES} bytes. When encryption is on, the payload is encrypted with
+ * AES-128 in CBC mode under a random IV before it is encoded (encrypt-then-MAC). The MAC and encryption keys are
+ * derived from the secret once; the JCA instances come from a {@link JCAInstancePool}.
+ */
+public class TokenSealer implements InitializingBean {
+
+    static final int MAC_BYTES = 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int IV_BYTES = 16;
+
+    private final JCAInstancePool jcaInstancePool;
+    private final SecureRandom random = new SecureRandom();
+    private String secret;
+    private boolean encrypt;
+
+    private SecretKeySpec macKey;
+    private SecretKeySpec encryptionKey;
+
+    public TokenSealer(JCAInstancePool jcaInstancePool) {
+        super();
+        this.jcaInstancePool = jcaInstancePool;
+    }
+
+    /**
+     * @param secret the secret the keys are derived from, the same on all nodes that open each others tokens
+     */
+    @Required
+    public void setSecret(final String secret) {
+        this.secret = secret;
+    }
+
+    /**
+     * @param encrypt whether the payload is encrypted as well, defaults to <code>false</code>
+     */
+    public void setEncrypt(final boolean encrypt) {
+        this.encrypt = encrypt;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        SecretKeySpec secretKey = new SecretKeySpec(Utf8.encode(secret), MAC_ALGORITHM);
+        macKey = new SecretKeySpec(derive(secretKey, "mac", 32), MAC_ALGORITHM);
+        encryptionKey = new SecretKeySpec(derive(secretKey, "encryption", 16), "AES");
+    }
+
+    public String seal(String payload) {
+        byte[] data = Utf8.encode(payload);
+        if (encrypt) {
+            try {
+                byte[] iv = new byte[IV_BYTES];
+                random.nextBytes(iv);
+                Cipher cipher = jcaInstancePool.getCipher(CIPHER_TRANSFORMATION);
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+                byte[] encrypted = new byte[IV_BYTES + cipher.getOutputSize(data.length)];
+                System.arraycopy(iv, 0, encrypted, 0, IV_BYTES);
+                int length = cipher.doFinal(data, 0, data.length, encrypted, IV_BYTES);
+                data = length == encrypted.length - IV_BYTES ? encrypted : copyOf(encrypted, IV_BYTES + length);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to encrypt with " + CIPHER_TRANSFORMATION, e);
+            }
+        }
+        String encodedPayload = encode(data, data.length);
+        return encodedPayload + '.' + encode(mac(encodedPayload), MAC_BYTES);
+    }
+
+    /**
+     * @return the payload, or <code>null</code> if the token was not sealed with the same secret and encryption
+     */
+    public String unseal(String token) {
+        int dot = token == null ? -1 : token.lastIndexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        String encodedPayload = token.substring(0, dot);
+        byte[] presentedMac = decode(token.substring(dot + 1));
+        if (presentedMac == null || presentedMac.length != MAC_BYTES) {
+            return null;
+        }
+        byte[] mac = mac(encodedPayload);
+        int difference = 0;
+        for (int i = 0; i < MAC_BYTES; i++) {
+            difference |= mac[i] ^ presentedMac[i];
+        }
+        if (difference != 0) {
+            return null;
+        }
+        byte[] data = decode(encodedPayload);
+        if (data == null) {
+            return null;
+        }
+        if (encrypt) {
+            if (data.length <= IV_BYTES) {
+                return null;
+            }
+            try {
+                Cipher cipher = jcaInstancePool.getCipher(CIPHER_TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(data, 0, IV_BYTES));
+                data = cipher.doFinal(data, IV_BYTES, data.length - IV_BYTES);
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        }
+        return Utf8.decode(data);
+    }
+
+    private byte[] mac(String encodedPayload) {
+        try {
+            Mac hmac = jcaInstancePool.getMac(MAC_ALGORITHM);
+            hmac.init(macKey);
+            return hmac.doFinal(Utf8.encode(encodedPayload));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static byte[] derive(SecretKeySpec secretKey, String purpose, int length) throws GeneralSecurityException {
+        Mac hmac = Mac.getInstance(MAC_ALGORITHM);
+        hmac.init(secretKey);
+        byte[] derived = hmac.doFinal(Utf8.encode(purpose));
+        return length == derived.length ? derived : copyOf(derived, length);
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static String encode(byte[] bytes, int length) {
+        String encoded = Base64.encodeBytes(bytes, 0, length, Base64.DONT_BREAK_LINES);
+        int end = encoded.length();
+        while (end > 0 && encoded.charAt(end - 1) == '=') {
+            end--;
+        }
+        return encoded.substring(0, end).replace('+', '-').replace('/', '_');
+    }
+
+    private static byte[] decode(String encoded) {
+        StringBuilder padded = new StringBuilder(encoded.length() + 3);
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '-') {
+                padded.append('+');
+            } else if (c == '_') {
+                padded.append('/');
+            } else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                padded.append(c);
+            } else {
+                return null;
+            }
+        }
+        while (padded.length() % 4 != 0) {
+            padded.append('=');
+        }
+        return Base64.decode(padded.toString());
+    }
+}
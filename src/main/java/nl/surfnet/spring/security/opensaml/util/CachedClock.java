@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Clock of which the time is updated by a single background thread, every millisecond by default. Reading it
+ * is a volatile read instead of a call into the system clock.
+ * <p/>
+ * The background thread is started by {@link #afterPropertiesSet()}; until then, and after {@link #destroy()},
+ * the system clock is read directly.
+ */
+public class CachedClock implements Clock, InitializingBean, DisposableBean {
+
+    private final long tick;
+    private volatile long now = System.currentTimeMillis();
+    private volatile Thread ticker;
+
+    public CachedClock() {
+        this(1);
+    }
+
+    /**
+     * @param tick the interval in milliseconds at which the time is updated
+     */
+    public CachedClock(long tick) {
+        super();
+        this.tick = tick;
+    }
+
+    public long currentTimeMillis() {
+        return ticker != null ? now : System.currentTimeMillis();
+    }
+
+    public void afterPropertiesSet() {
+        now = System.currentTimeMillis();
+        Thread newTicker = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    now = System.currentTimeMillis();
+                    try {
+                        Thread.sleep(tick);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "saml-clock");
+        newTicker.setDaemon(true);
+        newTicker.start();
+        ticker = newTicker;
+    }
+
+    public void destroy() {
+        Thread oldTicker = ticker;
+        ticker = null;
+        if (oldTicker != null) {
+            oldTicker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+/**
+ * Source of the current time for the time based checks and caches, so that they can share a {@link CachedClock}
+ * and tests can use a clock of their own.
+ */
+public interface Clock {
+
+    /**
+     * Reads the system clock on every call.
+     */
+    Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return the current time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Admission control for an expensive stage: at most <code>limit</code> callers hold a {@link Permit} at the same
+ * time, at most <code>queueSize</code> callers wait for one, and they wait no longer than the queue timeout. Callers
+ * that do not get a permit are expected to be turned away at once, which keeps the latency of the admitted ones
+ * bounded under overload.
+ * <p/>
+ * With adaptive limiting the limit follows the observed latency: it grows by one per limit of permits released
+ * within the target latency, and shrinks by a tenth for every permit released above it, between 1 and the
+ * configured maximum.
+ * <p/>
+ * The counters are exposed as managed attributes, for export by a Spring <code>MBeanExporter</code>.
+ */
+@ManagedResource(description = "Admission control of SAML authentications")
+public class ConcurrencyLimiter {
+
+    private final int maxLimit;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+
+    private boolean adaptive;
+    private long targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxLimit           the maximum number of permits held at the same time
+     * @param queueSize          the maximum number of callers waiting for a permit
+     * @param queueTimeoutMillis the time a caller waits for a permit
+     */
+    public ConcurrencyLimiter(int maxLimit, int queueSize, long queueTimeoutMillis) {
+        super();
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("The concurrency limit must be positive");
+        }
+        this.maxLimit = maxLimit;
+        this.queueSize = queueSize;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.limit = maxLimit;
+    }
+
+    /**
+     * @param adaptive whether the limit follows the latency of the permits, defaults to <code>false</code>
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @param targetLatencyMillis the latency above which an adaptive limit shrinks
+     */
+    public void setTargetLatency(long targetLatencyMillis) {
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+    }
+
+    /**
+     * @return a permit, to be released when the work is done, or <code>null</code> if the limit is reached and
+     *         the queue is full or no permit became available within the queue timeout
+     */
+    public Permit acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (queued >= queueSize) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                queued++;
+                try {
+                    long remaining = queueTimeoutNanos;
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0) {
+                            rejected.incrementAndGet();
+                            return null;
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } finally {
+                    queued--;
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        accepted.incrementAndGet();
+        return new Permit();
+    }
+
+    private void release(long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (adaptive) {
+                if (latencyNanos > targetLatencyNanos) {
+                    limit = Math.max(1, limit * 0.9);
+                } else {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            if (inFlight < (int) limit) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Current concurrency limit")
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Permits held")
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Callers waiting for a permit")
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Permits handed out")
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    @ManagedAttribute(description = "Callers turned away")
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The right to run the limited stage once. Releasing it more than once has no effect.
+     */
+    public final class Permit {
+
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replay cache that allows a message ID to be looked up without recording it, so that the lookup can run
+ * before signature verification while the message ID is only recorded once the message has been verified.
+ * <p/>
+ * Expired entries are purged every {@link #PURGE_INTERVAL} insertions, which bounds the number of entries by
+ * the number of messages received within the entry duration.
+ */
+public class ConcurrentReplayCache {
+
+    static final int PURGE_INTERVAL = 1024;
+
+    private final ConcurrentMap<String, Long> expirations = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger insertions = new AtomicInteger();
+    private final long entryDuration;
+    private final Clock clock;
+
+    public ConcurrentReplayCache(long entryDuration) {
+        this(entryDuration, Clock.SYSTEM);
+    }
+
+    public ConcurrentReplayCache(long entryDuration, Clock clock) {
+        super();
+        this.entryDuration = entryDuration;
+        this.clock = clock;
+    }
+
+    /**
+     * @return whether the message ID of the issuer has been recorded and has not expired yet
+     */
+    public boolean isKnown(String issuerId, String messageId) {
+        Long expiration = expirations.get(key(issuerId, messageId));
+        return expiration != null && expiration > currentTimeMillis();
+    }
+
+    /**
+     * Records the message ID of the issuer.
+     *
+     * @return <code>true</code> if the message ID was recorded, <code>false</code> if it is a replay
+     */
+    public boolean record(String issuerId, String messageId) {
+        String key = key(issuerId, messageId);
+        long now = currentTimeMillis();
+        Long expiration = now + entryDuration;
+        Long previous = expirations.putIfAbsent(key, expiration);
+        if (previous != null && (previous > now || !expirations.replace(key, previous, expiration))) {
+            return false;
+        }
+        if (insertions.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge(now);
+        }
+        return true;
+    }
+
+    public int size() {
+        return expirations.size();
+    }
+
+    protected long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    private void purge(long now) {
+        for (Iterator<Map.Entry<String, Long>> it = expirations.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    private String key(String issuerId, String messageId) {
+        return issuerId + '\n' + messageId;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Negative cache that keeps a failure score per key. Every failure adds one to the score, and the score halves
+ * every half-life, so a key is blocked while it fails faster than the threshold allows and is released
+ * automatically once it stops failing.
+ * <p/>
+ * The number of keys is bounded; when the bound is reached, keys that have decayed below one failure are
+ * purged, and if that is not enough the lowest scoring quarter of the keys is evicted. Blocked keys have the highest
+ * scores, so a flood of new keys cannot release them.
+ */
+public class DecayingFailureCache {
+
+    private final ConcurrentMap<String, Score> scores = new ConcurrentHashMap<String, Score>();
+    private final double threshold;
+    private final long halfLifeMillis;
+    private final int maxEntries;
+    private final Clock clock;
+
+    public DecayingFailureCache(double threshold, long halfLifeMillis, int maxEntries) {
+        this(threshold, halfLifeMillis, maxEntries, Clock.SYSTEM);
+    }
+
+    public DecayingFailureCache(double threshold, long halfLifeMillis, int maxEntries, Clock clock) {
+        super();
+        this.threshold = threshold;
+        this.halfLifeMillis = halfLifeMillis;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    public boolean isBlocked(String key) {
+        Score score = scores.get(key);
+        return score != null && score.current(currentTimeMillis(), halfLifeMillis) >= threshold;
+    }
+
+    /**
+     * @return the decayed number of recent failures of the key, including this one
+     */
+    public double recordFailure(String key) {
+        Score score = scores.get(key);
+        if (score == null) {
+            if (scores.size() >= maxEntries) {
+                purge();
+            }
+            Score newScore = new Score();
+            score = scores.putIfAbsent(key, newScore);
+            if (score == null) {
+                score = newScore;
+            }
+        }
+        return score.add(currentTimeMillis(), halfLifeMillis);
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+    protected long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    private void purge() {
+        long now = currentTimeMillis();
+        for (Iterator<Score> it = scores.values().iterator(); it.hasNext(); ) {
+            if (it.next().current(now, halfLifeMillis) < 1) {
+                it.remove();
+            }
+        }
+        if (scores.size() >= maxEntries) {
+            evictLowest(now);
+        }
+    }
+
+    private void evictLowest(long now) {
+        final Map<Score, Double> current = new IdentityHashMap<Score, Double>();
+        List<Map.Entry<String, Score>> entries = new ArrayList<Map.Entry<String, Score>>(scores.entrySet());
+        for (Map.Entry<String, Score> entry : entries) {
+            current.put(entry.getValue(), entry.getValue().current(now, halfLifeMillis));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Score>>() {
+            public int compare(Map.Entry<String, Score> e1, Map.Entry<String, Score> e2) {
+                return current.get(e1.getValue()).compareTo(current.get(e2.getValue()));
+            }
+        });
+        int evict = Math.min(entries.size(), Math.max(1, maxEntries / 4));
+        for (int i = 0; i < evict; i++) {
+            scores.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    private static class Score {
+
+        private double value;
+        private long updated;
+
+        synchronized double current(long now, long halfLifeMillis) {
+            return decayed(now, halfLifeMillis);
+        }
+
+        synchronized double add(long now, long halfLifeMillis) {
+            value = decayed(now, halfLifeMillis) + 1;
+            updated = now;
+            return value;
+        }
+
+        private double decayed(long now, long halfLifeMillis) {
+            long elapsed = now - updated;
+            return elapsed <= 0 ? value : value * Math.pow(0.5, (double) elapsed / halfLifeMillis);
+        }
+    }
+}
@@ -16,12 +16,56 @@
 
 package nl.surfnet.spring.security.opensaml.util;
 
-import java.util.UUID;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
+/**
+ * Generates the IDs of outbound messages: an underscore followed by 128 random bits in the URL safe base64
+ * alphabet, 23 characters in total. The leading underscore makes every ID a valid xsd:ID, which must not start
+ * with a digit.
+ * <p/>
+ * Every thread has its own <code>SecureRandom</code>, so concurrent logins do not contend for the single
+ * generator behind <code>UUID.randomUUID()</code>.
+ */
 public class IDService {
 
+    private static final int RANDOM_BYTES = 16;
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final ThreadLocal<SecureRandom> secureRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // self seeding and without the lock the native generator shares between all instances
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
     public String generateID() {
-        return UUID.randomUUID().toString();
+        byte[] bytes = new byte[RANDOM_BYTES];
+        secureRandom.get().nextBytes(bytes);
+
+        char[] id = new char[1 + (RANDOM_BYTES * 8 + 5) / 6];
+        id[0] = '_';
+        int position = 1;
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : bytes) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 6) {
+                bits -= 6;
+                id[position++] = ALPHABET[(buffer >>> bits) & 0x3f];
+            }
+        }
+        if (bits > 0) {
+            id[position] = ALPHABET[(buffer << (6 - bits)) & 0x3f];
+        }
+        return new String(id);
     }
 
 }
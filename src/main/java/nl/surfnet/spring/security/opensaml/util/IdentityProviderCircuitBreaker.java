@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Stops sending users to an identity provider that fails authentications faster than a threshold, until its
+ * failures have decayed below it again.
+ * <p/>
+ * Failures are reported with the entityID of the identity provider, while users are sent to the URL of its single
+ * sign-on service, so an identity provider is identified by the host of either when that is a URL, and by the
+ * entityID itself otherwise; for identity providers with a URN entityID only the failures are tracked.
+ */
+@ManagedResource(description = "Circuit breaker of failing identity providers")
+public class IdentityProviderCircuitBreaker {
+
+    private final DecayingFailureCache failures;
+
+    private final AtomicLong failuresRecorded = new AtomicLong();
+    private final AtomicLong requestsRefused = new AtomicLong();
+
+    public IdentityProviderCircuitBreaker(DecayingFailureCache failures) {
+        super();
+        this.failures = failures;
+    }
+
+    /**
+     * @param identityProvider the entityID or a URL of the identity provider
+     */
+    public void recordFailure(String identityProvider) {
+        failuresRecorded.incrementAndGet();
+        failures.recordFailure(keyOf(identityProvider));
+    }
+
+    /**
+     * @param identityProvider the entityID or a URL of the identity provider
+     * @return whether the identity provider fails too often for users to be sent to it
+     */
+    public boolean isOpen(String identityProvider) {
+        return failures.isBlocked(keyOf(identityProvider));
+    }
+
+    /**
+     * Like {@link #isOpen}, counting the refusal when it is open.
+     */
+    public boolean refuse(String identityProvider) {
+        if (isOpen(identityProvider)) {
+            requestsRefused.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @ManagedAttribute(description = "Failures reported by identity providers")
+    public long getFailuresRecorded() {
+        return failuresRecorded.get();
+    }
+
+    @ManagedAttribute(description = "Users not sent to an identity provider because it was failing")
+    public long getRequestsRefused() {
+        return requestsRefused.get();
+    }
+
+    @ManagedAttribute(description = "Identity providers with recent failures")
+    public int getTrackedIdentityProviders() {
+        return failures.size();
+    }
+
+    static String keyOf(String identityProvider) {
+        try {
+            String host = new URI(identityProvider).getHost();
+            return host == null ? identityProvider : host.toLowerCase();
+        } catch (URISyntaxException e) {
+            return identityProvider;
+        }
+    }
+}
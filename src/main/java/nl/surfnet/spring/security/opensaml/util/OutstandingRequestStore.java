@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The IDs of the AuthnRequests this node has sent and not received a Response to yet.
+ * <p/>
+ * The IDs are kept in a fixed size table, so the memory used does not depend on the number of requests. An ID
+ * hashes to a group of {@link #PROBES} slots; it takes the first free or expired slot of the group, or else
+ * replaces the entry that expires first. All updates are compare-and-set operations on single slots, no locks
+ * are taken. Under overload the oldest outstanding requests are forgotten first, which only affects users that
+ * are slower than everybody else to return from their identity provider.
+ */
+public class OutstandingRequestStore {
+
+    static final int PROBES = 4;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long lifetime;
+    private final Clock clock;
+
+    /**
+     * @param capacity the number of outstanding requests to keep, rounded up to a power of two; about twice the
+     *                 number of requests sent within the lifetime keeps the chance of forgetting one very small
+     * @param lifetime the time in milliseconds a request stays outstanding
+     */
+    public OutstandingRequestStore(int capacity, long lifetime) {
+        this(capacity, lifetime, Clock.SYSTEM);
+    }
+
+    public OutstandingRequestStore(int capacity, long lifetime, Clock clock) {
+        super();
+        int size = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+        this.slots = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.lifetime = lifetime;
+        this.clock = clock;
+    }
+
+    public void add(String requestId) {
+        long now = currentTimeMillis();
+        Entry entry = new Entry(requestId, now + lifetime);
+        int first = indexOf(requestId);
+        int oldest = first;
+        long oldestExpiration = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (first + i) & mask;
+            Entry current = slots.get(index);
+            if (current == null || current.expiration <= now) {
+                if (slots.compareAndSet(index, current, entry)) {
+                    return;
+                }
+                current = slots.get(index);
+            }
+            if (current != null && current.expiration < oldestExpiration) {
+                oldest = index;
+                oldestExpiration = current.expiration;
+            }
+        }
+        slots.set(oldest, entry);
+    }
+
+    /**
+     * @return whether the request has been sent by this node and has not expired or been consumed yet
+     */
+    public boolean isOutstanding(String requestId) {
+        return find(requestId, currentTimeMillis()) >= 0;
+    }
+
+    /**
+     * Removes the request, so that only one Response is accepted for it.
+     *
+     * @return <code>true</code> if the request was outstanding, <code>false</code> if it was not or has been
+     *         consumed already
+     */
+    public boolean consume(String requestId) {
+        int index = find(requestId, currentTimeMillis());
+        if (index < 0) {
+            return false;
+        }
+        Entry entry = slots.get(index);
+        return entry != null && entry.requestId.equals(requestId) && slots.compareAndSet(index, entry, null);
+    }
+
+    /**
+     * @return the number of slots of the table
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    protected long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    private int find(String requestId, long now) {
+        int first = indexOf(requestId);
+        for (int i = 0; i < PROBES; i++) {
+            int index = (first + i) & mask;
+            Entry entry = slots.get(index);
+            if (entry != null && entry.expiration > now && entry.requestId.equals(requestId)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(String requestId) {
+        // spread the String hash, which is nearly sequential for IDs that differ in their last character
+        int hash = requestId.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static final class Entry {
+
+        private final String requestId;
+        private final long expiration;
+
+        Entry(String requestId, long expiration) {
+            this.requestId = requestId;
+            this.expiration = expiration;
+        }
+    }
+}
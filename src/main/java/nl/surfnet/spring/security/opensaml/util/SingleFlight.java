@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent executions of the same work: while an execution for a key is in flight, other executions
+ * for that key by the same owner wait for it and share its outcome, result or exception, instead of doing the work
+ * again. Executions by another owner are never coalesced; they run the work themselves.
+ * <p/>
+ * An execution is forgotten as soon as it has finished, so its outcome is never handed to an execution that starts
+ * after it; such an execution does the work itself.
+ *
+ * @param <V> the type of the result of the work
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Flight<V>> flights = new ConcurrentHashMap<String, Flight<V>>();
+
+    /**
+     * @param key   identifies the work
+     * @param owner identifies on whose behalf the work is done
+     * @return the result of the work, or of the execution for the same key and owner it was coalesced with
+     * @throws Exception the exception of the work, or of the execution it was coalesced with
+     */
+    public V execute(String key, String owner, Callable<V> work) throws Exception {
+        Flight<V> flight = new Flight<V>(owner, work);
+        Flight<V> existing = flights.putIfAbsent(key, flight);
+        if (existing != null) {
+            return existing.owner.equals(owner) ? existing.outcome() : work.call();
+        }
+        try {
+            flight.run();
+            return flight.outcome();
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of keys in flight
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private static final class Flight<V> extends FutureTask<V> {
+
+        private final String owner;
+
+        Flight(String owner, Callable<V> work) {
+            super(work);
+            this.owner = owner;
+        }
+
+        V outcome() throws Exception {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
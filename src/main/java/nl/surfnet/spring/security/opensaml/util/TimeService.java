@@ -17,11 +17,35 @@
 package nl.surfnet.spring.security.opensaml.util;
 
 import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
 
+/**
+ * Provides the issue instants of outbound messages. The time is taken from a {@link Clock} and expressed in
+ * UTC, the time zone SAML uses anyway, so no default time zone has to be looked up. Messages created within the
+ * same millisecond share one DateTime instance.
+ */
 public class TimeService {
 
+    private final Clock clock;
+    private volatile DateTime current = new DateTime(0L, ISOChronology.getInstanceUTC());
+
+    public TimeService() {
+        this(Clock.SYSTEM);
+    }
+
+    public TimeService(Clock clock) {
+        super();
+        this.clock = clock;
+    }
+
     public DateTime getCurrentDateTime() {
-        return new DateTime();
+        long now = clock.currentTimeMillis();
+        DateTime dateTime = current;
+        if (dateTime.getMillis() != now) {
+            dateTime = new DateTime(now, ISOChronology.getInstanceUTC());
+            current = dateTime;
+        }
+        return dateTime;
     }
 
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Attribute;
+import org.opensaml.saml2.core.AttributeStatement;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.schema.XSAny;
+import org.opensaml.xml.schema.XSString;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Name based view on the attributes of an assertion.
+ * <p/>
+ * The attributes are indexed by name once, straight from the cached DOM of the assertion. Attribute
+ * values are only materialised (as plain strings) when {@link #getValues(String)} is called for that
+ * attribute, so attributes nobody asks for never become object graphs. When the assertion has no
+ * cached DOM the values are read from the unmarshalled {@link Attribute} objects instead.
+ */
+public class AttributeIndex {
+
+    private static final String ATTRIBUTE_STATEMENT = AttributeStatement.DEFAULT_ELEMENT_LOCAL_NAME;
+    private static final String ATTRIBUTE = Attribute.DEFAULT_ELEMENT_LOCAL_NAME;
+    private static final String ATTRIBUTE_VALUE = "AttributeValue";
+
+    private final Set<String> names = new LinkedHashSet<String>();
+    private final Map<String, List<Element>> attributeElements = new LinkedHashMap<String, List<Element>>();
+    private final Map<String, List<String>> attributeValues = new ConcurrentHashMap<String, List<String>>();
+
+    public AttributeIndex(Assertion assertion) {
+        super();
+        Element assertionElement = assertion.getDOM();
+        if (assertionElement != null) {
+            indexElements(assertionElement);
+        } else {
+            indexObjects(assertion.getAttributeStatements());
+        }
+    }
+
+    /**
+     * @return the names of all attributes in the assertion, in document order
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(names);
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * @param name the Name of the attribute
+     * @return the values of the attribute, or an empty list if the assertion does not contain it
+     */
+    public List<String> getValues(String name) {
+        List<String> values = attributeValues.get(name);
+        if (values != null) {
+            return values;
+        }
+        List<Element> elements = attributeElements.get(name);
+        if (elements == null) {
+            return Collections.emptyList();
+        }
+        values = new ArrayList<String>();
+        for (Element attributeElement : elements) {
+            for (Node child = attributeElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (isSAMLElement(child, ATTRIBUTE_VALUE)) {
+                    values.add(child.getTextContent());
+                }
+            }
+        }
+        values = Collections.unmodifiableList(values);
+        attributeValues.put(name, values);
+        return values;
+    }
+
+    /**
+     * @return the first value of the attribute, or <code>null</code> if it has none
+     */
+    public String getValue(String name) {
+        List<String> values = getValues(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Copies the Attribute elements whose values have not been asked for yet into a document of their own, so that
+     * the DOM of the assertion can be released. Only the Attribute subtrees are kept and their values stay
+     * unmaterialised until they are asked for.
+     */
+    public void detach() {
+        Document document = null;
+        for (Iterator<Map.Entry<String, List<Element>>> it = attributeElements.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, List<Element>> entry = it.next();
+            if (attributeValues.containsKey(entry.getKey())) {
+                it.remove();
+                continue;
+            }
+            List<Element> elements = entry.getValue();
+            for (int i = 0; i < elements.size(); i++) {
+                if (document == null) {
+                    document = elements.get(i).getOwnerDocument().getImplementation().createDocument(null, null, null);
+                }
+                elements.set(i, (Element) document.importNode(elements.get(i), true));
+            }
+        }
+    }
+
+    private void indexElements(Element assertionElement) {
+        for (Node statement = assertionElement.getFirstChild(); statement != null; statement = statement.getNextSibling()) {
+            if (!isSAMLElement(statement, ATTRIBUTE_STATEMENT)) {
+                continue;
+            }
+            for (Node attribute = statement.getFirstChild(); attribute != null; attribute = attribute.getNextSibling()) {
+                if (isSAMLElement(attribute, ATTRIBUTE)) {
+                    Element attributeElement = (Element) attribute;
+                    String name = attributeElement.getAttributeNS(null, Attribute.NAME_ATTTRIB_NAME);
+                    List<Element> elements = attributeElements.get(name);
+                    if (elements == null) {
+                        elements = new ArrayList<Element>(1);
+                        attributeElements.put(name, elements);
+                        names.add(name);
+                    }
+                    elements.add(attributeElement);
+                }
+            }
+        }
+    }
+
+    private void indexObjects(List<AttributeStatement> attributeStatements) {
+        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        for (AttributeStatement attributeStatement : attributeStatements) {
+            for (Attribute attribute : attributeStatement.getAttributes()) {
+                List<String> attributeValueList = values.get(attribute.getName());
+                if (attributeValueList == null) {
+                    attributeValueList = new ArrayList<String>();
+                    values.put(attribute.getName(), attributeValueList);
+                }
+                for (XMLObject xmlObject : attribute.getAttributeValues()) {
+                    String value = valueOf(xmlObject);
+                    if (value != null) {
+                        attributeValueList.add(value);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            names.add(entry.getKey());
+            attributeValues.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+    private String valueOf(XMLObject xmlObject) {
+        if (xmlObject instanceof XSString) {
+            return ((XSString) xmlObject).getValue();
+        } else if (xmlObject instanceof XSAny) {
+            return ((XSAny) xmlObject).getTextContent();
+        } else if (xmlObject.getDOM() != null) {
+            return xmlObject.getDOM().getTextContent();
+        }
+        return null;
+    }
+
+    private boolean isSAMLElement(Node node, String localName) {
+        return node.getNodeType() == Node.ELEMENT_NODE
+                && SAMLConstants.SAML20_NS.equals(node.getNamespaceURI())
+                && localName.equals(node.getLocalName());
+    }
+}
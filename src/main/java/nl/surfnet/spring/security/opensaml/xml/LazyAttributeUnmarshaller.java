@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.xml;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.impl.AttributeUnmarshaller;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.w3c.dom.Element;
+
+/**
+ * Attribute unmarshaller that leaves the AttributeValue children in the DOM instead of turning
+ * each of them into an XMLObject. The values can be read on demand through the {@link AttributeIndex} of the
+ * login view, which keeps the Attribute elements when the DOM of the Response is released.
+ */
+public class LazyAttributeUnmarshaller extends AttributeUnmarshaller {
+
+    private static final String ATTRIBUTE_VALUE = "AttributeValue";
+
+    @Override
+    protected void unmarshallChildElement(XMLObject xmlObject, Element childElement) throws UnmarshallingException {
+        if (SAMLConstants.SAML20_NS.equals(childElement.getNamespaceURI())
+                && ATTRIBUTE_VALUE.equals(childElement.getLocalName())) {
+            return;
+        }
+        super.unmarshallChildElement(xmlObject, childElement);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 SURFnet bv, The Netherlands
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.surfnet.spring.security.opensaml.xml;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Attribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Replaces the default {@link Attribute} unmarshaller with the {@link LazyAttributeUnmarshaller}. Has to be
+ * initialized after OpenSAML has been bootstrapped.
+ */
+public class LazyAttributeUnmarshallerRegistrar implements InitializingBean {
+
+    private final static Logger log = LoggerFactory.getLogger(LazyAttributeUnmarshallerRegistrar.class);
+
+    public void afterPropertiesSet() throws Exception {
+        log.debug("Registering lazy unmarshaller for {}", Attribute.DEFAULT_ELEMENT_NAME);
+        Configuration.getUnmarshallerFactory().registerUnmarshaller(Attribute.DEFAULT_ELEMENT_NAME, new LazyAttributeUnmarshaller());
+    }
+}